@@ -0,0 +1,29 @@
+package org.voelkerweb.midiviz;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks with the GC profiler, which reports the bytes allocated per operation
+ * (gc.alloc.rate.norm). Decoding is meant to be allocation free, so anything but ~0 for
+ * UsbMidiDecoderBenchmark is a regression. NoteTracker still allocates when a new measure starts.
+ * <p/>
+ * Pass a regular expression to run a subset, e.g. "Measure".
+ */
+public class BenchmarkMain
+{
+    public static void main(String[] args) throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : BenchmarkMain.class.getPackage().getName())
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,19 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * TrackerSettings with the app's default values, for benchmarks.
+ */
+public class FixedSettings implements TrackerSettings
+{
+    public int beatsPerMeasure() { return 4; }
+
+    public long measureDurationNanos() { return 4 * 60 * 1000 * Clock.NANOS_PER_MILLI / 100; }
+
+    public int numMeasuresToKeep() { return 12; }
+
+    public int maxLevel() { return 0x80; }
+
+    public String velocityCurve() { return VelocityCurve.NONLINEAR; }
+
+    public String velocityCalibration() { return VelocityCurve.DEFAULT_BREAKPOINTS; }
+}
@@ -0,0 +1,56 @@
+package org.voelkerweb.midiviz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single Measure.updateFromMessage call.
+ * <p/>
+ * Each invocation plays NOTES_PER_MEASURE notes (one Note On and one Note Off each) into a fresh
+ * measure, so the note arrays grow the way they do while playing. The measure's construction is
+ * amortized over all messages of the invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MeasureBenchmark
+{
+    private static final int NOTES_PER_MEASURE = 256;
+    private static final long DURATION = 2400 * Clock.NANOS_PER_MILLI;
+
+    private float[] velocityLevels;
+    private int[] noteOns = new int[NOTES_PER_MEASURE];
+    private int[] noteOffs = new int[NOTES_PER_MEASURE];
+
+    @Setup
+    public void setUp()
+    {
+        velocityLevels = VelocityCurve.levelsFor(new FixedSettings());
+        for (int i = 0; i < NOTES_PER_MEASURE; ++i) {
+            int key = 21 + i % 88;
+            noteOns[i] = MidiEvent.pack(MidiEvent.NOTE_ON, key, 1 + i % 127, 3);
+            noteOffs[i] = MidiEvent.pack(MidiEvent.NOTE_OFF, key, 0, 3);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * NOTES_PER_MEASURE)
+    public Measure updateFromMessage()
+    {
+        Measure measure = new Measure(0, DURATION, 4, true);
+        long step = DURATION / (2 * NOTES_PER_MEASURE);
+        for (int i = 0; i < NOTES_PER_MEASURE; ++i) {
+            measure.updateFromMessage(noteOns[i], 2 * i * step, velocityLevels);
+            measure.updateFromMessage(noteOffs[i], (2 * i + 1) * step, velocityLevels);
+        }
+        return measure;
+    }
+}
@@ -0,0 +1,65 @@
+package org.voelkerweb.midiviz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events per second through NoteTracker.update, including measure rollover and expiry.
+ * <p/>
+ * Every invocation feeds one batch of alternating Note On/Note Off pairs, spread over the
+ * BATCH_INTERVAL that the virtual clock advances by, so the tracker sees a dense but
+ * well-formed stream (no note is started twice while held).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NoteTrackerBenchmark
+{
+    private static final int BATCH_SIZE = 64;
+    private static final long BATCH_INTERVAL = 50 * Clock.NANOS_PER_MILLI;
+
+    private NoteTracker tracker;
+    private MidiEventBatch batch = new MidiEventBatch(BATCH_SIZE);
+    private long time;
+    private int nextKey;
+
+    @Setup
+    public void setUp()
+    {
+        tracker = new NoteTracker(new FixedSettings());
+        tracker.registerMetronome(new NoteTracker.DingListener()
+        {
+            public void scheduleMeasure(long[] dingTimes)
+            {
+            }
+        });
+        time = 0;
+        nextKey = 21;
+        tracker.update(batch, time);  // Starts the first measure.
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int update()
+    {
+        batch.clear();
+        long step = BATCH_INTERVAL / BATCH_SIZE;
+        for (int i = 0; i < BATCH_SIZE; i += 2) {
+            int key = nextKey;
+            nextKey = key == 108 ? 21 : key + 1;
+            batch.add(MidiEvent.pack(MidiEvent.NOTE_ON, key, 64 + (key & 0x3F), 3),
+                      time + i * step);
+            batch.add(MidiEvent.pack(MidiEvent.NOTE_OFF, key, 0, 3), time + (i + 1) * step);
+        }
+        time += BATCH_INTERVAL;
+        return tracker.update(batch, time);
+    }
+}
@@ -0,0 +1,115 @@
+package org.voelkerweb.midiviz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packets per second through UsbMidiDecoder, for full 64-byte bulk transfers: one of channel
+ * messages, one of a controller flood with interleaved clock ticks, and one carrying a SysEx
+ * message. Decoded messages go into a ring, which is drained after every transfer the way the UI
+ * thread would, so it never fills up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UsbMidiDecoderBenchmark
+{
+    private static final int TRANSFER_SIZE = 64;
+    private static final int PACKETS = TRANSFER_SIZE / UsbMidiDecoder.PACKET_SIZE;
+
+    private UsbMidiDecoder decoder = new UsbMidiDecoder();
+    private MidiRingBuffer ring = new MidiRingBuffer(1024);
+    private MidiEventBatch batch = new MidiEventBatch(PACKETS);
+    private byte[] channelMessages = new byte[TRANSFER_SIZE];
+    private byte[] controllerFlood = new byte[TRANSFER_SIZE];
+    private byte[] sysEx = new byte[TRANSFER_SIZE];
+    private long time;
+    private int sysExBytes;
+
+    private UsbMidiDecoder.Sink sink = new UsbMidiDecoder.Sink()
+    {
+        public void onMessage(int message, long timestamp)
+        {
+            ring.offer(message, timestamp);
+        }
+
+        public void onSysEx(int cable, byte[] data, int length, long timestamp)
+        {
+            sysExBytes += length;
+        }
+    };
+
+    @Setup
+    public void setUp()
+    {
+        // Note On, Note Off, Control Change and Program Change, on cable 0.
+        int[] cins = {0x9, 0x8, 0xB, 0xC};
+        for (int p = 0; p < PACKETS; ++p) {
+            int cin = cins[p % cins.length];
+            putPacket(channelMessages, p, cin, cin << 4, 36 + p, cin == 0xC ? 0 : 100);
+        }
+
+        // Mod wheel and channel pressure sweeps on cable 1, with a clock tick every 4th packet.
+        for (int p = 0; p < PACKETS; ++p) {
+            if (p % 4 == 3) {
+                putPacket(controllerFlood, p, 0x1F, 0xF8, 0, 0);
+            } else if (p % 2 == 0) {
+                putPacket(controllerFlood, p, 0x1B, 0xB0, 1, p * 8);
+            } else {
+                putPacket(controllerFlood, p, 0x1D, 0xD0, p * 8, 0);
+            }
+        }
+
+        // A 46 byte SysEx message: 15 packets of 3 bytes, and one with the final byte.
+        for (int p = 0; p < PACKETS - 1; ++p) {
+            putPacket(sysEx, p, 0x4, p == 0 ? 0xF0 : 0x10, 0x20, 0x30);
+        }
+        putPacket(sysEx, PACKETS - 1, 0x5, 0xF7, 0, 0);
+    }
+
+    private static void putPacket(byte[] transfer, int packet, int header, int b0, int b1, int b2)
+    {
+        int i = packet * UsbMidiDecoder.PACKET_SIZE;
+        transfer[i] = (byte) header;
+        transfer[i + 1] = (byte) b0;
+        transfer[i + 2] = (byte) b1;
+        transfer[i + 3] = (byte) b2;
+    }
+
+    private int decodeAndDrain(byte[] transfer)
+    {
+        int n = decoder.decode(transfer, TRANSFER_SIZE, ++time, sink);
+        batch.clear();
+        ring.drainTo(batch);
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int channelMessages()
+    {
+        return decodeAndDrain(channelMessages);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int controllerFlood()
+    {
+        return decodeAndDrain(controllerFlood);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int sysEx()
+    {
+        return decodeAndDrain(sysEx) + sysExBytes;
+    }
+}
@@ -0,0 +1,19 @@
+package org.voelkerweb.midiviz;
+
+import android.util.Log;
+
+/**
+ * Forwards messages from Logger to logcat.
+ */
+public class AndroidLogSink implements Logger.Sink
+{
+    public void debug(String tag, String message)
+    {
+        Log.d(tag, message);
+    }
+
+    public void error(String tag, String message)
+    {
+        Log.e(tag, message);
+    }
+}
@@ -0,0 +1,215 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * Synthesizes a metronome click track as a continuous stream of 16 bit mono PCM samples.
+ * <p/>
+ * Clicks are scheduled at exact sample frames, or at Clock times, and mixed into the stream at
+ * exactly that offset by render(). Clock times are converted to frames via an anchor that relates
+ * a frame to the time it is heard; the conversion happens when the click is about to be rendered,
+ * so it uses the most recent anchor. Timing therefore doesn't depend on when render() happens to
+ * be called, as long as clicks are scheduled before their frame has been rendered.
+ * <p/>
+ * This class is pure Java and doesn't know how samples are played; see ClickTrackPlayer. It is
+ * thread safe: clicks are typically scheduled on the UI thread and rendered on an audio thread.
+ */
+public class ClickTrackGenerator
+{
+    private static final float TOC_FREQUENCY = 1200.0f;  // Hz
+    private static final float TOC_DECAY = 0.004f;  // seconds
+    private static final float TOC_LENGTH = 0.025f;  // seconds
+    private static final float BELL_FREQUENCY = 880.0f;  // Hz
+    private static final float BELL_DECAY = 0.06f;  // seconds
+    private static final float BELL_LENGTH = 0.3f;  // seconds
+
+    // Maximum number of clicks that can be scheduled or sounding at the same time.
+    private static final int MAX_CLICKS = 128;
+
+    private final int sampleRate;
+    private final float[] tocWave;
+    private final float[] bellWave;
+
+    // Scheduled and currently sounding clicks, in no particular order. A click scheduled at a
+    // Clock time has clickTimed set, and its frame is determined when it is about to be rendered.
+    private final long[] clickFrames = new long[MAX_CLICKS];
+    private final long[] clickTimes = new long[MAX_CLICKS];
+    private final boolean[] clickTimed = new boolean[MAX_CLICKS];
+    private final float[][] clickWaves = new float[MAX_CLICKS][];
+    private final float[] clickVolumes = new float[MAX_CLICKS];
+    private int numClicks = 0;
+
+    private long renderedFrames = 0;  // index of the next frame to be rendered
+    private float[] mix = new float[0];  // scratch buffer for render()
+
+    // Frame anchorFrame is heard at Clock time anchorNanos.
+    private long anchorFrame = 0;
+    private long anchorNanos = 0;
+
+    public ClickTrackGenerator(int samplesPerSecond)
+    {
+        sampleRate = samplesPerSecond;
+        tocWave = synthesize(new float[]{TOC_FREQUENCY}, TOC_DECAY, TOC_LENGTH);
+        bellWave = synthesize(new float[]{BELL_FREQUENCY, 2 * BELL_FREQUENCY, 3 * BELL_FREQUENCY},
+                              BELL_DECAY, BELL_LENGTH);
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    // Records that the given frame is heard at the given Clock time. Should be updated regularly
+    // by the sink, since audio hardware clocks drift relative to the system clock.
+    public synchronized void setAnchor(long frame, long nanos)
+    {
+        anchorFrame = frame;
+        anchorNanos = nanos;
+    }
+
+    // Returns the frame that will be heard at the given Clock time.
+    public synchronized long frameForTime(long nanos)
+    {
+        return anchorFrame + Math.round((nanos - anchorNanos) * (double) sampleRate / 1e9);
+    }
+
+    /**
+     * Schedules a click to be heard at the given Clock time. We always play the toc sound and, if
+     * bell is set, the bell sound on top. This leads to a more consistent perception. Returns
+     * false if there are too many clicks scheduled, in which case the click is dropped.
+     */
+    public synchronized boolean scheduleClickAt(long nanos, boolean bell, float tocVolume,
+                                                float bellVolume)
+    {
+        if (numClicks + (bell ? 2 : 1) > MAX_CLICKS) {
+            return false;
+        }
+        addClick(0, nanos, true, tocWave, tocVolume);
+        if (bell) {
+            addClick(0, nanos, true, bellWave, bellVolume);
+        }
+        return true;
+    }
+
+    // Schedules a toc (or bell) click at the given frame. If the frame has already been rendered,
+    // the click plays as soon as possible. Returns false if there are too many clicks scheduled,
+    // in which case the click is dropped.
+    public synchronized boolean scheduleClick(long frame, boolean bell, float volume)
+    {
+        if (numClicks == MAX_CLICKS) {
+            return false;
+        }
+        addClick(Math.max(frame, renderedFrames), 0, false, bell ? bellWave : tocWave, volume);
+        return true;
+    }
+
+    private void addClick(long frame, long nanos, boolean timed, float[] wave, float volume)
+    {
+        clickFrames[numClicks] = frame;
+        clickTimes[numClicks] = nanos;
+        clickTimed[numClicks] = timed;
+        clickWaves[numClicks] = wave;
+        clickVolumes[numClicks] = volume;
+        ++numClicks;
+    }
+
+    // Removes all clicks that haven't started sounding yet.
+    public synchronized void clear()
+    {
+        int kept = 0;
+        for (int i = 0; i < numClicks; ++i) {
+            if (!clickTimed[i] && clickFrames[i] < renderedFrames) {
+                moveClick(i, kept++);
+            }
+        }
+        dropClicksFrom(kept);
+    }
+
+    // Index of the next frame that render() will produce.
+    public synchronized long getRenderedFrames()
+    {
+        return renderedFrames;
+    }
+
+    /**
+     * Renders the next 'frames' frames of the click track into out[offset..offset+frames), and
+     * advances the stream position accordingly.
+     */
+    public synchronized void render(short[] out, int offset, int frames)
+    {
+        if (mix.length < frames) {
+            mix = new float[frames];
+        }
+        for (int f = 0; f < frames; ++f) {
+            mix[f] = 0.0f;
+        }
+
+        long blockStart = renderedFrames;
+        long blockEnd = blockStart + frames;
+        int kept = 0;
+        for (int i = 0; i < numClicks; ++i) {
+            if (clickTimed[i]) {
+                long frame = frameForTime(clickTimes[i]);
+                if (frame >= blockEnd) {
+                    moveClick(i, kept++);  // Not yet.
+                    continue;
+                }
+                clickFrames[i] = Math.max(frame, blockStart);  // Late clicks play right away.
+                clickTimed[i] = false;
+            }
+            float[] wave = clickWaves[i];
+            float volume = clickVolumes[i];
+            long start = clickFrames[i];
+            if (start < blockEnd) {
+                int from = (int) Math.max(blockStart - start, 0);
+                int to = (int) Math.min(blockEnd - start, wave.length);
+                for (int w = from; w < to; ++w) {
+                    mix[(int) (start + w - blockStart)] += volume * wave[w];
+                }
+            }
+            if (start + wave.length > blockEnd) {
+                moveClick(i, kept++);  // Still sounding in the next block.
+            }
+        }
+        dropClicksFrom(kept);
+
+        for (int f = 0; f < frames; ++f) {
+            float v = Math.max(-1.0f, Math.min(1.0f, mix[f]));
+            out[offset + f] = (short) (v * Short.MAX_VALUE);
+        }
+        renderedFrames = blockEnd;
+    }
+
+    private void moveClick(int from, int to)
+    {
+        clickFrames[to] = clickFrames[from];
+        clickTimes[to] = clickTimes[from];
+        clickTimed[to] = clickTimed[from];
+        clickWaves[to] = clickWaves[from];
+        clickVolumes[to] = clickVolumes[from];
+    }
+
+    private void dropClicksFrom(int first)
+    {
+        for (int i = first; i < numClicks; ++i) {
+            clickWaves[i] = null;
+        }
+        numClicks = first;
+    }
+
+    // Creates an exponentially decaying sum of sines with the given frequencies, normalized to a
+    // peak of at most 1.
+    private float[] synthesize(float[] frequencies, float decay, float length)
+    {
+        float[] wave = new float[(int) (length * sampleRate)];
+        for (int n = 0; n < wave.length; ++n) {
+            double t = (double) n / sampleRate;
+            double v = 0.0;
+            double amplitude = 1.0;
+            for (float frequency : frequencies) {
+                v += amplitude * Math.sin(2 * Math.PI * frequency * t);
+                amplitude /= 2;
+            }
+            wave[n] = (float) (v / (2.0 - 2 * amplitude) * Math.exp(-t / decay));
+        }
+        return wave;
+    }
+}
@@ -0,0 +1,105 @@
+package org.voelkerweb.midiviz;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A thin AudioTrack sink that continuously streams a ClickTrackGenerator's output.
+ * <p/>
+ * After each block is written, the generator's anchor is updated from the playback head position,
+ * so that clicks scheduled at Clock times land on the matching samples.
+ */
+public class ClickTrackPlayer
+{
+    private static final String TAG = "ClickTrackPlayer";
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_FRAMES = 256;  // ~6 ms
+
+    private final Clock clock;
+    private final ClickTrackGenerator generator = new ClickTrackGenerator(SAMPLE_RATE);
+    private StreamThread thread;
+
+    public ClickTrackPlayer(Clock playerClock)
+    {
+        clock = playerClock;
+    }
+
+    public ClickTrackGenerator getGenerator()
+    {
+        return generator;
+    }
+
+    // Starts streaming, unless we're streaming already.
+    public void start()
+    {
+        if (thread == null) {
+            thread = new StreamThread();  // Note that Java threads can run only once.
+            thread.start();
+        }
+    }
+
+    // Stops streaming and discards all scheduled clicks.
+    public void stop()
+    {
+        if (thread != null) {
+            thread.stopped = true;
+            thread = null;
+        }
+        generator.clear();
+    }
+
+    // Stops streaming and waits until the AudioTrack has been released.
+    public void release()
+    {
+        StreamThread stopping = thread;
+        stop();
+        if (stopping != null) {
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class StreamThread extends Thread
+    {
+        volatile boolean stopped = false;
+
+        @Override
+        public void run()
+        {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            int minBufferBytes = AudioTrack.getMinBufferSize(SAMPLE_RATE,
+                                                             AudioFormat.CHANNEL_OUT_MONO,
+                                                             AudioFormat.ENCODING_PCM_16BIT);
+            AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLE_RATE,
+                                              AudioFormat.CHANNEL_OUT_MONO,
+                                              AudioFormat.ENCODING_PCM_16BIT,
+                                              Math.max(minBufferBytes, 4 * 2 * BLOCK_FRAMES),
+                                              AudioTrack.MODE_STREAM);
+            short[] block = new short[BLOCK_FRAMES];
+            long headOffset = generator.getRenderedFrames();  // stream frame of head position 0
+            generator.setAnchor(headOffset, clock.nanoTime());  // refined after the first write
+            track.play();
+            Log.d(TAG, "Click track streaming started.");
+            while (!stopped) {
+                generator.render(block, 0, BLOCK_FRAMES);
+                int written = track.write(block, 0, BLOCK_FRAMES);  // blocks while buffer is full
+                if (written < 0) {
+                    Log.e(TAG, "AudioTrack write error: " + written);
+                    break;
+                }
+                // The head position is the frame being played right now.
+                long head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+                generator.setAnchor(headOffset + head, clock.nanoTime());
+            }
+            track.stop();
+            track.release();
+            Log.d(TAG, "Click track streaming stopped.");
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * A monotonic clock with nanosecond resolution. All timestamps in the tracking pipeline (MIDI
+ * events, measures, metronome dings and drawing) come from the same injected Clock, so they are
+ * consistent with each other and unaffected by changes to the wall clock.
+ * <p/>
+ * Timestamps are only meaningful relative to each other. Tests can substitute a VirtualClock to
+ * run the pipeline deterministically at full speed.
+ */
+public interface Clock
+{
+    public static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    // The system's monotonic clock. On Android, System.nanoTime() is based on the same clock as
+    // SystemClock.uptimeMillis() and Choreographer's frame times.
+    public static final Clock SYSTEM = new Clock()
+    {
+        public long nanoTime()
+        {
+            return System.nanoTime();
+        }
+    };
+
+    public long nanoTime();
+}
@@ -0,0 +1,86 @@
+package org.voelkerweb.midiviz;
+
+import android.util.Log;
+
+/**
+ * A diagnostic event log for the hot paths that costs nothing but a field read when disabled.
+ * <p/>
+ * When enabled, raw MIDI events are recorded as primitives into a fixed-size in-memory ring that
+ * keeps the most recent RING_SIZE entries. Nothing is formatted until somebody dumps the ring to
+ * logcat or displays it in the debug view.
+ * <p/>
+ * Recording and reading must happen on the same thread (the UI thread).
+ */
+public class Diagnostics
+{
+    private static final String TAG = "Diagnostics";
+    private static final int RING_SIZE = 1024;  // must be a power of two
+
+    private static boolean enabled = false;
+
+    private static final int[] messages = new int[RING_SIZE];  // packed, see MidiEvent
+    private static final long[] timestamps = new long[RING_SIZE];
+    private static long count = 0;  // total number of entries ever recorded
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on)
+    {
+        enabled = on;
+    }
+
+    // Records a single MIDI event. Callers on hot paths should check isEnabled() first.
+    public static void recordEvent(int message, long timestamp)
+    {
+        if (!enabled) {
+            return;
+        }
+        int idx = (int) count & (RING_SIZE - 1);
+        messages[idx] = message;
+        timestamps[idx] = timestamp;
+        ++count;
+    }
+
+    // Records all events in the batch.
+    public static void recordEvents(MidiEventBatch events)
+    {
+        if (!enabled) {
+            return;
+        }
+        for (int i = 0; i < events.size(); ++i) {
+            recordEvent(events.getMessage(i), events.getTimestamp(i));
+        }
+    }
+
+    // Returns the sequence number that the next recorded entry will get.
+    public static long getSequence()
+    {
+        return count;
+    }
+
+    /**
+     * Formats all entries recorded since the given sequence number (one per line) and appends them
+     * to s. Entries that have already been overwritten are skipped. Returns the sequence number to
+     * pass in next time.
+     */
+    public static long formatSince(long sequence, StringBuilder s)
+    {
+        long first = Math.max(sequence, count - RING_SIZE);
+        for (long n = first; n < count; ++n) {
+            int idx = (int) n & (RING_SIZE - 1);
+            s.append("\n").append(MidiEvent.toString(messages[idx], timestamps[idx]));
+        }
+        return count;
+    }
+
+    // Writes the contents of the ring to logcat.
+    public static void dump()
+    {
+        StringBuilder s = new StringBuilder();
+        formatSince(0, s);
+        Log.d(TAG, "Last " + Math.min(count, RING_SIZE) + " of " + count + " events:" + s);
+    }
+}
@@ -1,23 +1,107 @@
 package org.voelkerweb.midiviz;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
 
 /**
- * A mock implementation of MidiInterface that creates fake Midi messages at random times.
+ * A mock implementation of MidiInterface that creates fake Midi messages, either at random times
+ * or following one of several load scenarios:
+ * <pre>
+ *   RANDOM      single notes from a two-octave range, 200 to 1000 ms apart
+ *   CHORDS      four to six note chords, struck together, four times per second
+ *   TRILL       two neighboring keys alternating at the configured rate
+ *   GLISSANDO   sweeps over all 88 keys, up and down, at the configured rate
+ *   SUSTAIN     fast random notes with the sustain pedal going down and up every two seconds
+ *   AFTERTOUCH  a held chord with poly and channel pressure at the configured rate
+ *   CLOCK_FLOOD random notes on top of timing clock messages at the configured rate
+ * </pre>
+ * The generator is seeded, so a scenario produces the same events, at the same offsets from the
+ * start, on every run. That makes it suitable for finding where tracking and rendering fall
+ * behind, and for catching throughput regressions.
+ * <p/>
+ * Messages are generated lazily by getEvents(), timestamped with their scheduled times. If a
+ * listener is registered, a ticker thread notifies it whenever the next message is due.
  */
 public class FakeMidiGenerator implements MidiInterface
 {
     private static final String TAG = "FakeMidiGenerator";
 
+    public static final String RANDOM = "random";
+    public static final String CHORDS = "chords";
+    public static final String TRILL = "trill";
+    public static final String GLISSANDO = "glissando";
+    public static final String SUSTAIN = "sustain";
+    public static final String AFTERTOUCH = "aftertouch";
+    public static final String CLOCK_FLOOD = "clock_flood";
+
     private static final int MIN_TIME_INTERVAL = 200;  // msecs
     private static final int MAX_TIME_INTERVAL = 1000;  // msecs
+    private static final int CHORD_INTERVAL = 250;  // msecs
+    private static final int SUSTAIN_NOTE_INTERVAL = 100;  // msecs
+    private static final int PEDAL_INTERVAL = 2000;  // msecs
+
+    private static final int LOWEST_KEY = 21;  // A0
+    private static final int HIGHEST_KEY = 108;  // C8
+    private static final int SUSTAIN_PEDAL = 64;
+    private static final int NOT_HELD = -1;
+
+    // Generate at most this many events per poll, so a consumer that can't keep up falls behind
+    // gradually instead of receiving one giant batch.
+    private static final int MAX_EVENTS_PER_POLL = 8192;
+
+    private Clock clock;
+    private String scenario;
+    private long rateInterval;  // nanos between events for the rate-driven scenarios
+    private long seed;
 
-    private Random mRandom = new Random();
-    private List<MidiMessage> currentNotes = new ArrayList<MidiMessage>();
-    private long nextEventTime = 0;
-    private boolean running = false;
+    private Random mRandom;
+    private volatile long nextEventTime = 0;
+    private volatile boolean running = false;
+    private MidiDispatcher dispatcher = new MidiDispatcher(this);
+    private Thread ticker;
+
+    // Currently held keys, as an unordered list plus a key-indexed table, so that both checking
+    // and releasing a key are O(1).
+    private int[] heldKeys = new int[Measure.NUM_KEYS];
+    private int[] heldIndex = new int[Measure.NUM_KEYS];  // index into heldKeys, or NOT_HELD
+    private byte[] heldVelocities = new byte[Measure.NUM_KEYS];
+    private int numHeld = 0;
+
+    // Scenario state.
+    private int step = 0;
+    private long nextPedalTime = 0;
+    private boolean pedalDown = false;
+
+    // Creates a generator of single random notes, like a slow and sloppy player.
+    public FakeMidiGenerator(Clock clock)
+    {
+        this(clock, RANDOM, 1000, 1);
+    }
+
+    // Creates a generator for one of the scenarios above. 'rate' is the number of events per
+    // second for the rate-driven scenarios.
+    public FakeMidiGenerator(Clock clock, String scenario, int rate, long seed)
+    {
+        this.clock = clock;
+        this.scenario = scenario;
+        this.rateInterval = 1000 * Clock.NANOS_PER_MILLI / Math.max(rate, 1);
+        this.seed = seed;
+        reset();
+    }
+
+    // Restarts the scenario from the beginning.
+    private void reset()
+    {
+        mRandom = new Random(seed);
+        for (int key = 0; key < Measure.NUM_KEYS; ++key) {
+            heldIndex[key] = NOT_HELD;
+        }
+        numHeld = 0;
+        step = 0;
+        pedalDown = false;
+        nextPedalTime = 0;
+        nextEventTime = 0;
+    }
 
     @Override
     public boolean findAndConnectDevice() {
@@ -32,74 +116,189 @@ public class FakeMidiGenerator implements MidiInterface
     @Override
     public void startReceiving() {
         running = true;
+        if (dispatcher.hasListener()) {
+            ticker = new TickerThread();  // Note that Java threads can run only once.
+            ticker.start();
+        }
     }
 
     @Override
     public void stopReceiving() {
         running = false;
+        if (ticker != null) {
+            ticker.interrupt();
+            ticker = null;
+        }
+    }
+
+    @Override
+    public void setListener(MidiListener listener, Executor executor) {
+        dispatcher.setListener(listener, executor);
     }
 
     @Override
-    public List<MidiMessage> getMessages()
+    public void getEvents(MidiEventBatch batch)
     {
-        long currentTime = System.currentTimeMillis();
+        long currentTime = clock.nanoTime();
         initializeNextEventTime(currentTime);
-        List<MidiMessage> messages = new ArrayList<MidiMessage>();
-        while (nextEventTime <= currentTime) {
-            int n = mRandom.nextInt(currentNotes.size() + 1);
-            if (n < currentNotes.size()) {
-                // Release a currently held note.
-                MidiMessage msg = currentNotes.remove(n);
-                msg.data[0] = (byte) 0x80;  // the other fields remain the same
-                msg.timestamp = nextEventTime;
-                messages.add(msg);
-            } else {
-                // Add a new note.
-                byte key = (byte) (0x40 + mRandom.nextInt(24));
-                if (!isHeld(key)) {
-                    MidiMessage msg = new MidiMessage();
-                    msg.data = new byte[3];
-                    msg.data[0] = (byte) 0x90;
-                    msg.data[1] = key;
-                    msg.data[2] = (byte) (0x20 + mRandom.nextInt(0x50));  // volume
-                    msg.timestamp = nextEventTime;
-                    currentNotes.add(msg);
-                    messages.add(copyMessage(msg));
-                }
+        int generated = 0;
+        while (nextEventTime <= currentTime && generated < MAX_EVENTS_PER_POLL) {
+            int before = batch.size();
+            generate(batch, nextEventTime);
+            generated += batch.size() - before;
+        }
+    }
+
+    private void initializeNextEventTime(long currentTime)
+    {
+        if (nextEventTime == 0) {
+            nextEventTime = currentTime;
+            nextPedalTime = currentTime;
+            if (RANDOM.equals(scenario)) {
+                updateNextEventTime();
             }
+        }
+    }
+
+    private void updateNextEventTime()
+    {
+        nextEventTime += Clock.NANOS_PER_MILLI *
+                (MIN_TIME_INTERVAL + mRandom.nextInt(MAX_TIME_INTERVAL - MIN_TIME_INTERVAL));
+    }
+
+    // Generates the events due at 'time' and advances nextEventTime.
+    private void generate(MidiEventBatch batch, long time)
+    {
+        if (RANDOM.equals(scenario)) {
+            randomNote(batch, time, 0x40, 24);
             updateNextEventTime();
+        } else if (CHORDS.equals(scenario)) {
+            releaseAll(batch, time);
+            int root = 36 + mRandom.nextInt(48);
+            int size = 4 + mRandom.nextInt(3);
+            for (int i = 0; i < size; ++i) {
+                int key = root + 3 * i + mRandom.nextInt(2);  // stacked thirds
+                press(batch, time, key, 0x30 + mRandom.nextInt(0x40));
+            }
+            nextEventTime += CHORD_INTERVAL * Clock.NANOS_PER_MILLI;
+        } else if (TRILL.equals(scenario)) {
+            int key = 60 + (step++ & 1);
+            releaseAll(batch, time);
+            press(batch, time, key, 0x40 + mRandom.nextInt(0x20));
+            nextEventTime += 2 * rateInterval;  // One Note On and one Note Off per step.
+        } else if (GLISSANDO.equals(scenario)) {
+            int range = HIGHEST_KEY - LOWEST_KEY;
+            int position = step++ % (2 * range);
+            int key = position < range ? LOWEST_KEY + position : HIGHEST_KEY - (position - range);
+            releaseAll(batch, time);
+            press(batch, time, key, 0x50);
+            nextEventTime += 2 * rateInterval;
+        } else if (SUSTAIN.equals(scenario)) {
+            if (time >= nextPedalTime) {
+                pedalDown = !pedalDown;
+                batch.add(MidiEvent.pack(MidiEvent.CONTROL_CHANGE, SUSTAIN_PEDAL,
+                                         pedalDown ? 127 : 0, 3), time);
+                nextPedalTime += PEDAL_INTERVAL * Clock.NANOS_PER_MILLI;
+            }
+            randomNote(batch, time, 36, 48);
+            nextEventTime += SUSTAIN_NOTE_INTERVAL * Clock.NANOS_PER_MILLI;
+        } else if (AFTERTOUCH.equals(scenario)) {
+            if (numHeld == 0) {
+                press(batch, time, 60, 0x60);
+                press(batch, time, 64, 0x60);
+                press(batch, time, 67, 0x60);
+            }
+            int pressure = (step++ / numHeld) % 128;
+            if (step % 4 == 0) {
+                batch.add(MidiEvent.pack(MidiEvent.CHANNEL_PRESSURE, pressure, 0, 2), time);
+            } else {
+                int key = heldKeys[step % numHeld];
+                batch.add(MidiEvent.pack(MidiEvent.POLY_PRESSURE, key, pressure, 3), time);
+            }
+            nextEventTime += rateInterval;
+        } else if (CLOCK_FLOOD.equals(scenario)) {
+            batch.add(MidiEvent.pack(MidiEvent.TIMING_CLOCK, 0, 0, 1), time);
+            if (++step % 64 == 0) {
+                randomNote(batch, time, 0x40, 24);
+            }
+            nextEventTime += rateInterval;
+        } else {
+            Logger.e(TAG, "Unknown scenario '" + scenario + "', using " + RANDOM);
+            scenario = RANDOM;
         }
-        return messages;
     }
 
-    private boolean isHeld(byte key)
+    // Releases a random held note or presses a new one in [lowest, lowest + range).
+    private void randomNote(MidiEventBatch batch, long time, int lowest, int range)
     {
-        for (MidiMessage note : currentNotes) {
-            if (note.data[1] == key) return true;
+        int n = mRandom.nextInt(numHeld + 1);
+        if (n < numHeld) {
+            release(batch, time, heldKeys[n]);
+        } else {
+            int key = lowest + mRandom.nextInt(range);
+            if (heldIndex[key] == NOT_HELD) {
+                press(batch, time, key, 0x20 + mRandom.nextInt(0x50));
+            }
         }
-        return false;
     }
 
-    private void initializeNextEventTime(long currentTime)
+    private void press(MidiEventBatch batch, long time, int key, int velocity)
     {
-        if (nextEventTime == 0) {
-            nextEventTime = currentTime;
-            updateNextEventTime();
+        if (key < 0 || key >= Measure.NUM_KEYS || heldIndex[key] != NOT_HELD) {
+            return;
         }
+        heldIndex[key] = numHeld;
+        heldKeys[numHeld++] = key;
+        heldVelocities[key] = (byte) velocity;
+        batch.add(MidiEvent.pack(MidiEvent.NOTE_ON, key, velocity, 3), time);
     }
 
-    private void updateNextEventTime()
+    private void release(MidiEventBatch batch, long time, int key)
+    {
+        int i = heldIndex[key];
+        if (i == NOT_HELD) {
+            return;
+        }
+        int last = heldKeys[--numHeld];
+        heldKeys[i] = last;
+        heldIndex[last] = i;
+        heldIndex[key] = NOT_HELD;
+        batch.add(MidiEvent.pack(MidiEvent.NOTE_OFF, key, heldVelocities[key], 3), time);
+    }
+
+    private void releaseAll(MidiEventBatch batch, long time)
     {
-        nextEventTime += MIN_TIME_INTERVAL + mRandom.nextInt(MAX_TIME_INTERVAL - MIN_TIME_INTERVAL);
+        while (numHeld > 0) {
+            release(batch, time, heldKeys[numHeld - 1]);
+        }
     }
 
-    // We generally don't have much need for copying midi messages, so we have this utility method
-    // buried here.
-    private MidiMessage copyMessage(MidiMessage msg)
+    // Wakes up the listener whenever the next fake message is due.
+    private class TickerThread extends Thread
     {
-        MidiMessage copy = new MidiMessage();
-        copy.data = msg.data.clone();
-        copy.timestamp = msg.timestamp;
-        return copy;
+        @Override
+        public void run()
+        {
+            while (running) {
+                long now = clock.nanoTime();
+                long next = nextEventTime;
+                long delay;
+                if (next == 0) {
+                    delay = MIN_TIME_INTERVAL;  // The first poll hasn't happened yet.
+                } else if (next <= now) {
+                    // nextEventTime only advances once the listener has drained the due message.
+                    // Until then, further notifications are coalesced by the dispatcher.
+                    dispatcher.notifyEventsAvailable();
+                    delay = 1;
+                } else {
+                    delay = Math.max((next - now) / Clock.NANOS_PER_MILLI, 1);
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+}
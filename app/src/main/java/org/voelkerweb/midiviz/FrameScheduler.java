@@ -0,0 +1,89 @@
+package org.voelkerweb.midiviz;
+
+import android.view.Choreographer;
+
+/**
+ * Drives the update loop from the display's vsync via Choreographer, replacing a fixed-rate
+ * Handler poll.
+ * <p/>
+ * While the callback reports activity (new input or held notes), the callback runs on every frame.
+ * Once it has been idle for a short while, the scheduler drops to a low rate that is just enough
+ * to move the time marker, which saves CPU and battery. wake() returns to the full frame rate
+ * immediately.
+ * <p/>
+ * All methods must be called on the UI thread.
+ */
+public class FrameScheduler implements Choreographer.FrameCallback
+{
+    // Keep running at the full frame rate for this long after the last activity.
+    private static final long LINGER_NANOS = 500 * 1000 * 1000;
+
+    public interface Callback
+    {
+        // Called once per scheduled frame. Returns true if there was activity that warrants
+        // running at the full frame rate.
+        public boolean onFrame(long frameTimeNanos);
+    }
+
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private final Callback callback;
+    private final long idleIntervalMillis;
+
+    private boolean running = false;
+    private boolean idle = false;
+    private long lastActiveNanos = 0;
+
+    public FrameScheduler(Callback frameCallback, long idleUpdateIntervalMillis)
+    {
+        callback = frameCallback;
+        idleIntervalMillis = idleUpdateIntervalMillis;
+    }
+
+    public void start()
+    {
+        choreographer.removeFrameCallback(this);
+        running = true;
+        idle = false;
+        lastActiveNanos = System.nanoTime();
+        choreographer.postFrameCallback(this);
+    }
+
+    public void stop()
+    {
+        running = false;
+        choreographer.removeFrameCallback(this);
+    }
+
+    // Returns to the full frame rate, e.g. when new input arrives while idle.
+    public void wake()
+    {
+        lastActiveNanos = System.nanoTime();
+        if (running && idle) {
+            idle = false;
+            choreographer.removeFrameCallback(this);
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    public boolean isIdle()
+    {
+        return idle;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos)
+    {
+        if (!running) {
+            return;
+        }
+        if (callback.onFrame(frameTimeNanos)) {
+            lastActiveNanos = frameTimeNanos;
+        }
+        idle = frameTimeNanos - lastActiveNanos > LINGER_NANOS;
+        if (idle) {
+            choreographer.postFrameCallbackDelayed(this, idleIntervalMillis);
+        } else {
+            choreographer.postFrameCallback(this);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * A fixed-size histogram of durations in nanoseconds, with about 3% relative precision from one
+ * microsecond up to a minute. Recording is O(1) and doesn't allocate.
+ * <p/>
+ * Buckets are log-linear: values below 64 microseconds get one bucket per microsecond, and every
+ * further power of two is split into 32 equally wide buckets. Negative values are counted in the
+ * first bucket, values above the range in the last one; min and max are tracked exactly.
+ * <p/>
+ * A histogram must only be written by one thread. Other threads may read it, but can see
+ * slightly stale values.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKETS = 32;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;  // in microseconds
+    private static final int MAX_EXPONENT = 21;  // 2^(21 + 5) microseconds ~ 67 seconds
+    private static final int NUM_BUCKETS = LINEAR_LIMIT + MAX_EXPONENT * SUB_BUCKETS;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final String name;
+    private final long[] counts = new long[NUM_BUCKETS];
+    private volatile long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    public LatencyHistogram(String histogramName)
+    {
+        name = histogramName;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void record(long nanos)
+    {
+        ++counts[bucketFor(nanos / NANOS_PER_MICRO)];
+        sum += nanos;
+        if (nanos < min) min = nanos;
+        if (nanos > max) max = nanos;
+        count = count + 1;
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public long getMin()
+    {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax()
+    {
+        return count == 0 ? 0 : max;
+    }
+
+    public long getMean()
+    {
+        long n = count;
+        return n == 0 ? 0 : sum / n;
+    }
+
+    // Returns the value (in nanoseconds) below which the given fraction of recorded values fall,
+    // rounded to the lower bound of its bucket.
+    public long getPercentile(double fraction)
+    {
+        long n = count;
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(Math.max(lowerBound(i) * NANOS_PER_MICRO, getMin()), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int bucketFor(long micros)
+    {
+        if (micros < LINEAR_LIMIT) {
+            return (int) Math.max(micros, 0);
+        }
+        // Shift so that the value falls into [SUB_BUCKETS, 2 * SUB_BUCKETS).
+        int exponent = 63 - Long.numberOfLeadingZeros(micros) - 5;
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        return LINEAR_LIMIT + (exponent - 1) * SUB_BUCKETS + (int) (micros >> exponent) -
+                SUB_BUCKETS;
+    }
+
+    private static long lowerBound(int bucket)
+    {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return sub << exponent;
+    }
+
+    public String toString()
+    {
+        return String.format("%s: n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                             name, getCount(), toMillis(getMean()), toMillis(getPercentile(0.5)),
+                             toMillis(getPercentile(0.9)), toMillis(getPercentile(0.99)),
+                             toMillis(getMax()));
+    }
+
+    private static double toMillis(long nanos)
+    {
+        return nanos / (double) Clock.NANOS_PER_MILLI;
+    }
+}
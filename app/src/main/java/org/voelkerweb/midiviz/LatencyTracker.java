@@ -0,0 +1,122 @@
+package org.voelkerweb.midiviz;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Measures how long MIDI events take from reception to the screen, broken down by pipeline stage:
+ * <pre>
+ *   receive  bulkTransfer returned in UsbMidiHelper (the event's timestamp)
+ *   drain    Main picked up the event on the UI thread
+ *   apply    NoteTracker/Measure.updateFromMessage applied it
+ *   draw     Visualizer.onDraw drew it for the first time
+ * </pre>
+ * Each stage transition, and the end-to-end latency, feeds a LatencyHistogram. The clock is read
+ * once per stage and batch rather than per event, and nothing is recorded while disabled.
+ * <p/>
+ * All methods must be called on the UI thread.
+ */
+public class LatencyTracker
+{
+    // Events applied but not drawn yet. If more than this many pile up between two frames, the
+    // oldest ones are not measured.
+    private static final int MAX_PENDING = 512;
+
+    private final Clock clock;
+    private boolean enabled = false;
+
+    private final LatencyHistogram receiveToDrain = new LatencyHistogram("receive->drain");
+    private final LatencyHistogram drainToApply = new LatencyHistogram("drain->apply");
+    private final LatencyHistogram applyToDraw = new LatencyHistogram("apply->draw");
+    private final LatencyHistogram receiveToDraw = new LatencyHistogram("receive->draw");
+    private final LatencyHistogram[] histograms =
+            {receiveToDrain, drainToApply, applyToDraw, receiveToDraw};
+
+    private long drainTime = 0;
+
+    // Receive and apply times of events waiting to be drawn.
+    private final long[] pendingReceiveTimes = new long[MAX_PENDING];
+    private final long[] pendingApplyTimes = new long[MAX_PENDING];
+    private int numPending = 0;
+
+    public LatencyTracker(Clock trackerClock)
+    {
+        clock = trackerClock;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void setEnabled(boolean on)
+    {
+        enabled = on;
+        numPending = 0;
+    }
+
+    public LatencyHistogram[] getHistograms()
+    {
+        return histograms;
+    }
+
+    public void reset()
+    {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        numPending = 0;
+    }
+
+    // Called when a batch of events has been picked up on the UI thread.
+    public void onDrained(MidiEventBatch events)
+    {
+        if (!enabled || events.isEmpty()) {
+            return;
+        }
+        drainTime = clock.nanoTime();
+        for (int i = 0; i < events.size(); ++i) {
+            receiveToDrain.record(drainTime - events.getTimestamp(i));
+        }
+    }
+
+    // Called when the events of a drained batch have been applied to their measures.
+    public void onApplied(MidiEventBatch events)
+    {
+        if (!enabled || events.isEmpty()) {
+            return;
+        }
+        long applyTime = clock.nanoTime();
+        for (int i = 0; i < events.size(); ++i) {
+            drainToApply.record(applyTime - drainTime);
+            if (numPending < MAX_PENDING) {
+                pendingReceiveTimes[numPending] = events.getTimestamp(i);
+                pendingApplyTimes[numPending] = applyTime;
+                ++numPending;
+            }
+        }
+    }
+
+    // Called when a frame showing all applied events has been drawn.
+    public void onDrawn()
+    {
+        if (!enabled || numPending == 0) {
+            return;
+        }
+        long drawTime = clock.nanoTime();
+        for (int i = 0; i < numPending; ++i) {
+            applyToDraw.record(drawTime - pendingApplyTimes[i]);
+            receiveToDraw.record(drawTime - pendingReceiveTimes[i]);
+        }
+        numPending = 0;
+    }
+
+    // Writes a summary of all histograms, one per line.
+    public void export(Writer out) throws IOException
+    {
+        for (LatencyHistogram histogram : histograms) {
+            out.write(histogram.toString());
+            out.write("\n");
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * Logging for the classes that don't depend on Android (Measure, NoteTracker, VelocityCurve,
+ * UsbMidiDecoder, ...), so they can also run on a plain JVM, e.g. in benchmarks.
+ * <p/>
+ * By default, messages go to System.err. The app installs a sink that forwards to
+ * android.util.Log (see AndroidLogSink).
+ */
+public final class Logger
+{
+    public interface Sink
+    {
+        void debug(String tag, String message);
+
+        void error(String tag, String message);
+    }
+
+    private static final Sink STDERR = new Sink()
+    {
+        public void debug(String tag, String message)
+        {
+            System.err.println("D/" + tag + ": " + message);
+        }
+
+        public void error(String tag, String message)
+        {
+            System.err.println("E/" + tag + ": " + message);
+        }
+    };
+
+    private static volatile Sink sink = STDERR;
+
+    private Logger()
+    {
+    }
+
+    public static void setSink(Sink newSink)
+    {
+        sink = newSink != null ? newSink : STDERR;
+    }
+
+    public static void d(String tag, String message)
+    {
+        sink.debug(tag, message);
+    }
+
+    public static void e(String tag, String message)
+    {
+        sink.error(tag, message);
+    }
+}
@@ -13,9 +13,19 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import java.util.concurrent.Executor;
 
 /**
  * The main activity. It contains two fragments: VisualizerFragment and (optionally)
@@ -26,20 +36,54 @@ public class Main extends Activity
     private static final String TAG = "Main";
     private static final boolean showDebugWindow = false;
 
-    private Handler handler = new Handler();
-    private Parameters parameters;
+    // Old session journals are deleted beyond these limits. Each one takes at least 1 MiB.
+    private static final int MAX_JOURNALS = 20;
+    private static final long MAX_JOURNAL_BYTES = 100L * 1024 * 1024;
+
+    private Clock clock = Clock.SYSTEM;
+    private FrameScheduler frameScheduler;
+    private LatencyTracker latencyTracker;
+    private SessionJournal journal;  // null if recording is off or failed
     private Metronome metronome;
-    private MidiInterface midi;
+    private MidiInterface midi;  // the current input: liveMidi, or a replay
+    private MidiInterface liveMidi;  // the USB device or FakeMidiGenerator
     private boolean metronomeRegistered = false;
     private boolean midiConnected = false;
+    private long journalOrigin = -1;  // measure grid origin while journaling, see exportMidiFile()
+    private boolean exporting = false;  // a Midi file export is running in the background
+
+    // Receives the new MIDI events on every update; reused to avoid allocations.
+    private MidiEventBatch events = new MidiEventBatch(256);
+
+    // Sequence number of the first diagnostics entry not yet shown in the debug view.
+    private long debugSequence = 0;
+
+    // Delivers pushed MIDI events on the UI thread, which owns NoteTracker and the views.
+    private Handler handler = new Handler();
+    private Executor uiExecutor = new Executor()
+    {
+        public void execute(Runnable task)
+        {
+            handler.post(task);
+        }
+    };
 
-    // Updates the view periodically.
-    private Runnable updateViewTask = new Runnable()
+    // Processes MIDI events the moment they arrive, and wakes up the frame loop if it is idle.
+    private MidiListener midiListener = new MidiListener()
     {
-        public void run()
+        public void onMidiEvents(MidiEventBatch events)
         {
-            update();
-            handler.postDelayed(updateViewTask, parameters.updateIntervalMillis());
+            processEvents(events);
+            frameScheduler.wake();
+        }
+    };
+
+    // Updates the view on every frame while playing, and at a low rate while idle.
+    private FrameScheduler.Callback updateViewTask = new FrameScheduler.Callback()
+    {
+        public boolean onFrame(long frameTimeNanos)
+        {
+            return update();
         }
     };
 
@@ -47,6 +91,7 @@ public class Main extends Activity
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
+        Logger.setSink(new AndroidLogSink());  // Route the platform-independent logging to logcat.
         setContentView(R.layout.activity_main);
         if (savedInstanceState == null) {
             FragmentTransaction transaction = getFragmentManager().beginTransaction();
@@ -58,11 +103,23 @@ public class Main extends Activity
         }
 
         // Create member instances.  Note that we can't pass 'this' before this activity is created.
-        parameters = new Parameters(this);
-        metronome = new Metronome(this, parameters);
+        Parameters parameters = Parameters.get(this);
+        metronome = new Metronome(this, clock);
+        latencyTracker = new LatencyTracker(clock);
+        frameScheduler = new FrameScheduler(updateViewTask, parameters.idleUpdateIntervalMillis());
+        if (parameters.recordSessions()) {
+            journal = createJournal();
+        }
 
         // Find and register the USB MIDI device.
-        midi = parameters.fakeMidi() ? new FakeMidiGenerator() : new UsbMidiHelper(this);
+        if (parameters.fakeMidi()) {
+            liveMidi = new FakeMidiGenerator(clock, parameters.fakeMidiScenario(),
+                                             parameters.fakeMidiRate(), parameters.fakeMidiSeed());
+        } else {
+            liveMidi = new UsbMidiHelper(this, clock);
+        }
+        midi = liveMidi;
+        midi.setListener(midiListener, uiExecutor);
         if (!midi.findAndConnectDevice()) {
             Log.d(TAG, "No suitable device found.");
         }
@@ -78,6 +135,17 @@ public class Main extends Activity
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu)
+    {
+        MenuItem replayItem = menu.findItem(R.id.action_replay);
+        if (replayItem != null) {
+            replayItem.setTitle(isReplaying() ? R.string.action_stop_replay
+                                              : R.string.action_replay);
+        }
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item)
     {
@@ -89,6 +157,19 @@ public class Main extends Activity
                 Log.d(TAG, "settings menu selected");
                 this.startActivity(new Intent(this, SettingsActivity.class));
                 return true;
+            case R.id.action_export_midi:
+                exportMidiFile();
+                return true;
+            case R.id.action_replay:
+                if (isReplaying()) {
+                    stopReplay();
+                } else {
+                    replayLastRecording();
+                }
+                return true;
+            case R.id.action_export_latency:
+                exportLatencyStats();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -99,8 +180,10 @@ public class Main extends Activity
     {
         super.onResume();
         Log.d(TAG, "resume");
-        handler.removeCallbacks(updateViewTask);
-        handler.postDelayed(updateViewTask, parameters.updateIntervalMillis());
+        frameScheduler.start();
+        Parameters parameters = Parameters.get(this);  // The settings may have just changed.
+        Diagnostics.setEnabled(showDebugWindow || parameters.diagnostics());
+        latencyTracker.setEnabled(parameters.latencyStats());
 
         // TODO: it may happen that the midi listener thread hasn't stopped yet (timeout=1s).
         // Figure out what would happen in this case. Worst case: startReceiving() doesn't do
@@ -117,6 +200,7 @@ public class Main extends Activity
             Visualizer visualizer = (Visualizer) findViewById(R.id.visualization_view);
             if (visualizer != null) {
                 visualizer.registerMetronome(metronome);
+                visualizer.registerLatencyTracker(latencyTracker);
                 metronomeRegistered = true;
             }
         }
@@ -127,43 +211,307 @@ public class Main extends Activity
     {
         super.onPause();
         Log.d(TAG, "pause");
-        handler.removeCallbacks(updateViewTask);
+        frameScheduler.stop();
         metronome.pause();
+        if (Diagnostics.isEnabled()) {
+            Diagnostics.dump();
+        }
+        if (latencyTracker.isEnabled()) {
+            for (LatencyHistogram histogram : latencyTracker.getHistograms()) {
+                Log.d(TAG, histogram.toString());
+            }
+        }
 
         midi.stopReceiving();
         midiConnected = false;
+        if (journal != null) {
+            journal.force();
+        }
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        metronome.close();
+        if (isReplaying()) {
+            ((ReplayMidiInterface) midi).close();
+        }
+        liveMidi.stopReceiving();
+        liveMidi.setListener(null, null);
+        Visualizer visualizer = (Visualizer) findViewById(R.id.visualization_view);
+        if (visualizer != null) {
+            visualizer.close();
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    // Starts a new session journal in the app's private storage, named after the current time,
+    // and deletes the oldest ones beyond MAX_JOURNALS or MAX_JOURNAL_BYTES. Returns null if the
+    // journal can't be created; we can live without it.
+    private SessionJournal createJournal()
+    {
+        File dir = new File(getFilesDir(), "sessions");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create " + dir.getPath());
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(now));
+        try {
+            SessionJournal created = SessionJournal.create(
+                    new File(dir, "session-" + name + SessionJournal.EXTENSION), now,
+                    clock.nanoTime());
+            SessionJournal.deleteOldJournals(dir, MAX_JOURNALS, MAX_JOURNAL_BYTES);
+            return created;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create session journal: " + e.getMessage());
+            return null;
+        }
     }
 
     // Periodically updates the view, advancing the current-time marker and updating any new
-    // or released notes.
-    private void update()
+    // or released notes. Returns true if there was new input or notes are being held.
+    private boolean update()
     {
-        // Get new Midi messages.
-        List<MidiMessage> messages = new ArrayList<MidiMessage>();
+        // Get new Midi messages. Most of them are pushed to midiListener as they arrive, so this
+        // only picks up stragglers.
+        events.clear();
+        // Checked before draining: once the replay has finished, the drain gets its last events.
+        boolean replayFinished = isReplaying() && ((ReplayMidiInterface) midi).isFinished();
         if (midi.ready()) {
             if (!midiConnected) {
                 midi.startReceiving();
                 midiConnected = true;
             }
-            messages = midi.getMessages();
+            midi.getEvents(events);
         }
-        if (!messages.isEmpty()) {
-            Log.d(TAG, "New messages: " + messages);
+        boolean active = processEvents(events);
+        if (replayFinished) {
+            stopReplay();
+        }
+        return active;
+    }
+
+    // Feeds new MIDI events to the visualizer and debug views. Returns true if there were any
+    // events or notes are being held.
+    private boolean processEvents(MidiEventBatch batch)
+    {
+        if (Diagnostics.isEnabled()) {
+            Diagnostics.recordEvents(batch);
+        }
+        latencyTracker.onDrained(batch);
+        if (journal != null && !isReplaying() && !journal.appendAll(batch)) {
+            journal.close();  // Out of storage; the journal has logged the details.
+            journal = null;
         }
 
         // Update graphics. This also creates new measures and forwards ding times to metronome.
+        boolean active = !batch.isEmpty();
         Visualizer visualizer = (Visualizer) findViewById(R.id.visualization_view);
         if (visualizer != null) {
-            visualizer.update(messages);
+            visualizer.update(batch, clock.nanoTime());
+            active |= visualizer.hasHeldNotes();
+            if (journalOrigin < 0 && journal != null && !isReplaying() && !batch.isEmpty()) {
+                journalOrigin = visualizer.getMeasureOriginTime();
+            }
         }
 
-        // Update debug view.
+        // Update debug view. Only here do the recorded events get formatted.
         TextView debugView = (TextView) findViewById(R.id.debug_view);
-        if (debugView != null && !messages.isEmpty()) {
-            Log.d(TAG, "New messages: " + messages);
-            for (MidiMessage msg : messages) {
-                debugView.append("\n");
-                debugView.append(msg.toString());
+        if (debugView != null && Diagnostics.getSequence() != debugSequence) {
+            StringBuilder s = new StringBuilder();
+            debugSequence = Diagnostics.formatSince(debugSequence, s);
+            debugView.append(s);
+        }
+        return active;
+    }
+
+    // Writes the session recorded so far to a Standard MIDI File in the app's external files
+    // directory, named like the journal. Long sessions take a while, so the file is written on a
+    // background thread, from a read-only mapping of the journal up to the records journaled by
+    // now. The journal itself keeps recording on the UI thread.
+    private void exportMidiFile()
+    {
+        if (journal == null || journal.getRecordCount() == 0) {
+            Toast.makeText(this, "Nothing recorded", Toast.LENGTH_LONG).show();
+            return;
+        }
+        if (exporting) {
+            Toast.makeText(this, "Export already running", Toast.LENGTH_LONG).show();
+            return;
+        }
+        exporting = true;
+        final File journalFile = journal.getFile();
+        final long numRecords = journal.getRecordCount();
+        // Bar lines as shown while the journaled events were played, not those of a replay.
+        final long origin = journalOrigin >= 0 ? journalOrigin : journal.getStartNanos();
+        Parameters parameters = Parameters.get(this);
+        final int beatsPerMinute = parameters.beatsPerMinute();
+        final int beatsPerMeasure = parameters.beatsPerMeasure();
+        String name = journalFile.getName().replace(SessionJournal.EXTENSION, ".mid");
+        final File file = new File(getExternalFilesDir(null), name);
+
+        new Thread("MidiFileExport")
+        {
+            @Override
+            public void run()
+            {
+                String result;
+                try {
+                    long count = exportMidiFile(journalFile, numRecords, origin, beatsPerMinute,
+                                                beatsPerMeasure, file);
+                    result = "Saved " + count + " events to " + file.getPath();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not export Midi file: " + e.getMessage());
+                    result = "Export failed";
+                }
+                final String message = result;
+                handler.post(new Runnable()
+                {
+                    public void run()
+                    {
+                        exporting = false;
+                        Toast.makeText(Main.this, message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }.start();
+    }
+
+    // Runs on the export thread. Returns the number of events written.
+    private static long exportMidiFile(File journalFile, long numRecords, long origin,
+                                       int beatsPerMinute, int beatsPerMeasure, File file)
+            throws IOException
+    {
+        SessionJournal snapshot = SessionJournal.openReadOnly(journalFile);
+        FileOutputStream out = null;
+        try {
+            long count = Math.min(numRecords, snapshot.getRecordCount());
+            long firstTime = count > 0 ? snapshot.getTimestamp(0) : origin;
+            MidiFileExporter exporter = new MidiFileExporter(
+                    MidiFileExporter.barLineBefore(origin, firstTime, beatsPerMinute,
+                                                   beatsPerMeasure),
+                    beatsPerMinute, beatsPerMeasure);
+            out = new FileOutputStream(file);
+            return exporter.export(snapshot, count, SmfWriter.FORMAT_MULTI_TRACK,
+                                   out.getChannel());
+        } finally {
+            snapshot.close();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close " + file.getPath());
+                }
+            }
+        }
+    }
+
+    // Replaces the Midi input with a replay of the most recent recording: either an exported Midi
+    // file or a journal of an earlier session.
+    private void replayLastRecording()
+    {
+        File latest = null;
+        File exportDir = getExternalFilesDir(null);  // null if external storage is unavailable
+        File[] exported = exportDir != null ? exportDir.listFiles() : null;
+        File[] journals = new File(getFilesDir(), "sessions").listFiles();
+        for (File[] files : new File[][]{exported, journals}) {
+            for (int i = 0; files != null && i < files.length; ++i) {
+                File file = files[i];
+                boolean isRecording = file.getName().endsWith(".mid") ||
+                        file.getName().endsWith(SessionJournal.EXTENSION);
+                boolean isCurrent = journal != null && file.equals(journal.getFile());
+                if (isRecording && !isCurrent &&
+                        (latest == null || file.lastModified() > latest.lastModified())) {
+                    latest = file;
+                }
+            }
+        }
+        if (latest == null) {
+            Toast.makeText(this, "No recordings found", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        ReplaySource source;
+        try {
+            if (latest.getName().endsWith(".mid")) {
+                FileInputStream in = new FileInputStream(latest);
+                try {
+                    source = new SmfReader(in.getChannel());
+                } catch (IOException e) {
+                    in.close();
+                    throw e;
+                }
+            } else {
+                // Read-only, so replaying doesn't clear a torn tail of the recording.
+                source = SessionJournal.openReadOnly(latest).newReplaySource();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open " + latest.getPath() + ": " + e.getMessage());
+            Toast.makeText(this, "Cannot replay " + latest.getName(), Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        // Pause the live input; stopReplay() switches back to it.
+        midi.stopReceiving();
+        midi.setListener(null, null);
+        midi = new ReplayMidiInterface(source, clock, Parameters.get(this).replaySpeed());
+        midi.setListener(midiListener, uiExecutor);
+        midi.startReceiving();
+        midiConnected = true;
+        invalidateOptionsMenu();
+        Toast.makeText(this, "Replaying " + latest.getName(), Toast.LENGTH_LONG).show();
+    }
+
+    // Replayed events are not journaled again.
+    private boolean isReplaying()
+    {
+        return midi != liveMidi;
+    }
+
+    // Ends the replay, whether it has finished or not, and switches back to the live input.
+    private void stopReplay()
+    {
+        ReplayMidiInterface replay = (ReplayMidiInterface) midi;
+        replay.setListener(null, null);
+        replay.close();  // Also closes its source.
+        Log.d(TAG, "Replay stopped after " + replay.getReplayedCount() + " events.");
+
+        midi = liveMidi;
+        midi.setListener(midiListener, uiExecutor);
+        midiConnected = false;  // update() starts receiving as soon as the device is ready.
+        if (midi.ready()) {
+            midi.startReceiving();
+            midiConnected = true;
+        }
+        invalidateOptionsMenu();
+        Toast.makeText(this, "Replay ended", Toast.LENGTH_SHORT).show();
+    }
+
+    // Writes the latency histograms to a text file in the app's external files directory.
+    private void exportLatencyStats()
+    {
+        File file = new File(getExternalFilesDir(null),
+                             "latency-" + System.currentTimeMillis() + ".txt");
+        Writer out = null;
+        try {
+            out = new FileWriter(file);
+            latencyTracker.export(out);
+            Toast.makeText(this, "Saved " + file.getPath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not export latency statistics: " + e.getMessage());
+            Toast.makeText(this, "Export failed", Toast.LENGTH_LONG).show();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close " + file.getPath());
+                }
             }
         }
     }
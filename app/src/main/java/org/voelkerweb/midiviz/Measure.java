@@ -1,24 +1,36 @@
 package org.voelkerweb.midiviz;
 
-import android.util.Log;
-
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Represents all notes contained in a musical measure.
+ * <p/>
+ * Notes are stored as a struct of arrays rather than as one object per note: the i-th note is
+ * described by startBeats[i], endBeats[i], keys[i] and levels[i]. The arrays grow geometrically,
+ * and held notes are tracked by a key-indexed table, so playing doesn't allocate per note.
  */
 public class Measure
 {
     private static final String TAG = "Measure";
+    static final int NUM_KEYS = 128;  // Midi keys range from 0 to 127.
+    private static final int INITIAL_NOTE_CAPACITY = 16;
+    private static final int NOT_HELD = -1;
+
     private boolean active = false;
-    private long t0, t1;
+    private long t0, t1;  // Clock time in nanoseconds
     private int numBeats;
-    private List<Note> notes = new ArrayList<Note>();
-    private Map<Integer, Note> heldNotes = new HashMap<Integer, Note>();
+
+    // We use fractional "beats" instead of "seconds" to keep track of when a note was played.
+    // This will make handling tempo changes easier.
+    private int numNotes = 0;
+    private float[] startBeats = new float[INITIAL_NOTE_CAPACITY];
+    private float[] endBeats = new float[INITIAL_NOTE_CAPACITY];  // only valid if not held
+    private byte[] keys = new byte[INITIAL_NOTE_CAPACITY];
+    private float[] levels = new float[INITIAL_NOTE_CAPACITY];  // ranges from 0 to 1
+
+    // For each key, the index of the note currently holding it, or NOT_HELD.
+    private int[] heldNoteIndex = new int[NUM_KEYS];
+    private int numHeldNotes = 0;
 
     // Creates a measure with the given startTime.
     public Measure(long startTime, long duration, int beats, boolean isActive)
@@ -27,6 +39,21 @@ public class Measure
         numBeats = beats;
         t0 = startTime;
         t1 = t0 + duration;
+        Arrays.fill(heldNoteIndex, NOT_HELD);
+    }
+
+    // Turns this measure into an empty one with the given startTime, keeping the note arrays.
+    void reset(long startTime, long duration, int beats, boolean isActive)
+    {
+        active = isActive;
+        numBeats = beats;
+        t0 = startTime;
+        t1 = t0 + duration;
+        numNotes = 0;
+        if (numHeldNotes > 0) {
+            Arrays.fill(heldNoteIndex, NOT_HELD);
+            numHeldNotes = 0;
+        }
     }
 
     // Creates a measure immediately succeeding the lastMeasure, and carrying over any held notes.
@@ -34,13 +61,24 @@ public class Measure
                                           boolean isActive)
     {
         Measure newMeasure = new Measure(lastMeasure.getEndTime(), duration, beats, isActive);
+        newMeasure.continueFrom(lastMeasure, duration, beats, isActive);
+        return newMeasure;
+    }
+
+    // Like FromLastMeasure(), but reuses this measure (see MeasureRing). lastMeasure must be a
+    // different one.
+    void continueFrom(Measure lastMeasure, long duration, int beats, boolean isActive)
+    {
+        reset(lastMeasure.getEndTime(), duration, beats, isActive);
         // Carry over held notes.
-        for (Note note : lastMeasure.getHeldNotes()) {
-            Note newNote = new Note(0.0f, note.key, note.level);
-            newMeasure.notes.add(newNote);
-            newMeasure.heldNotes.put(newNote.key, newNote);
+        if (lastMeasure.numHeldNotes > 0) {
+            for (int key = 0; key < NUM_KEYS; ++key) {
+                int i = lastMeasure.heldNoteIndex[key];
+                if (i != NOT_HELD) {
+                    addHeldNote(0.0f, key, lastMeasure.levels[i]);
+                }
+            }
         }
-        return newMeasure;
     }
 
     public boolean isActive()
@@ -58,14 +96,47 @@ public class Measure
         return t1;
     }
 
-    public Collection<Note> getNotes()
+    /**
+     * Accessors for the notes in this measure, in the order they were played. These let the
+     * painter iterate over notes by index without touching any per-note objects:
+     * <pre>
+     *   for (int i = 0; i < measure.getNoteCount(); ++i) { ... measure.getNoteKey(i) ... }
+     * </pre>
+     */
+    public int getNoteCount()
+    {
+        return numNotes;
+    }
+
+    public float getNoteStartBeat(int i)
     {
-        return notes;
+        return startBeats[i];
     }
 
-    public Collection<Note> getHeldNotes()
+    // Only meaningful for notes that are no longer held.
+    public float getNoteEndBeat(int i)
     {
-        return heldNotes.values();
+        return endBeats[i];
+    }
+
+    public int getNoteKey(int i)
+    {
+        return keys[i];
+    }
+
+    public float getNoteLevel(int i)
+    {
+        return levels[i];
+    }
+
+    public boolean isNoteHeld(int i)
+    {
+        return heldNoteIndex[keys[i]] == i;
+    }
+
+    public boolean hasHeldNotes()
+    {
+        return numHeldNotes > 0;
     }
 
     public int getNumBeats()
@@ -78,122 +149,110 @@ public class Measure
         return ((float) (t - t0)) / ((float) (t1 - t0)) * getNumBeats();
     }
 
-    // Returns the timestamps of all the beats in the measure, including first and last.
-    public long[] getDingTimes() {
-        long[] times = new long[numBeats + 1];
+    // Fills in the timestamps of all the beats in the measure, including first and last. times[]
+    // must hold getNumBeats() + 1 values.
+    public void getDingTimes(long[] times) {
         for (int n = 0; n <= numBeats; ++n) {
             times[n] = t0 + (t1 - t0) * n / numBeats;
         }
-        return times;
-    }
-
-    // Converts the Midi "velocity" (byte between 0 and 127, I think) to a float level between 0
-    // and 1.
-    //
-    // Experimental: use a nonlinear scale.
-    private static class VelocityLevelPair {
-        public VelocityLevelPair(int v, float l) { velocity = v; level = l; }
-        public int velocity;
-        public float level;
-    }
-
-    private static ArrayList<VelocityLevelPair> velocityToLevel =
-            new ArrayList<VelocityLevelPair>() {{
-                add(new VelocityLevelPair(10, 0.0f));          // MIN
-                add(new VelocityLevelPair(20, 1.0f / 7.0f));   // PP
-                add(new VelocityLevelPair(30, 2.0f / 7.0f));   // P
-                add(new VelocityLevelPair(40, 3.0f / 7.0f));   // MP
-                add(new VelocityLevelPair(55, 4.0f / 7.0f));   // MF
-                add(new VelocityLevelPair(70, 5.0f / 7.0f));   // F
-                add(new VelocityLevelPair(90, 6.0f / 7.0f));   // FF
-                add(new VelocityLevelPair(127, 7.0f / 7.0f));  // MAX
-            }};
-
-    private static float velocityToLevel(int velocity, Parameters parameters) {
-        Log.d(TAG, "VELOCITY: " + velocity);
-        // Traditional:
-        //return Util.safeDiv(velocity, parameters.maxLevel());
-
-        // First convert the velocity to a level between 0 and 7.
-        // TODO: we're ignoring Parameters.maxLevel() for now.
-        VelocityLevelPair last = null;
-        for (VelocityLevelPair current : velocityToLevel) {
-            if (velocity <= current.velocity) {
-                if (last == null) {
-                    Log.e(TAG, "Velocity is too small: " + velocity);
-                    return 0.0f;
-                } else {
-                    return last.level +
-                            Util.safeDiv(velocity - last.velocity, current.velocity - last.velocity)
-                                    * (current.level - last.level);
-                }
-            }
-            last = current;
-        }
-        // We only get here if the velocity is greater than the (assumed) max velocity of 127.
-        Log.e(TAG, "Velocity too big: " + velocity);
-        return 1.0f;
     }
 
-    // Updates the notes according to the given Midi message, either adding a new note or releasing
-    // a currently held note.
-    public void updateFromMessage(MidiMessage message, Parameters parameters)
+    // Updates the notes according to the given packed Midi message (see MidiEvent), either adding
+    // a new note or releasing a currently held note. New notes get their level from the
+    // velocityLevels table (see VelocityCurve). All other messages are ignored.
+    public void updateFromMessage(int message, long timestamp, float[] velocityLevels)
+    {
+        updateFromMessage(message, timestamp, velocityLevels, null);
+    }
+
+    // Like above, and also passes the onsets of new notes to the timing analyzer, if any.
+    public void updateFromMessage(int message, long timestamp, float[] velocityLevels,
+                                  TimingAnalyzer timing)
     {
-        if (message.data.length > 0) {
-            int cmd = Util.byteToUnsignedInt(message.data[0]);
-            if (cmd == 0x80 || cmd == 0x90) {
-                if (message.data.length != 3) {
-                    Log.e(TAG, "Invalid message: " + message);
+        int length = MidiEvent.length(message);
+        if (length > 0) {
+            int cmd = MidiEvent.status(message);
+            if (cmd == MidiEvent.NOTE_OFF || cmd == MidiEvent.NOTE_ON) {
+                if (length != 3) {
+                    Logger.e(TAG, "Invalid message: " + MidiEvent.toString(message, timestamp));
                     return;
                 }
-                int key = Util.byteToUnsignedInt(message.data[1]);
-                int velocity = Util.byteToUnsignedInt(message.data[2]);
-                if (cmd == 0x80) {
-                    releaseNote(key, message.timestamp);
-                } else {  // cmd == 0x90
-                    float level = velocityToLevel(velocity, parameters);
-                    Log.d(TAG, "Velocity " + velocity + " -> Level " + (7 * level));
-                    startNote(key, level, message.timestamp);
+                int key = MidiEvent.data1(message);
+                int velocity = MidiEvent.data2(message);
+                if (cmd == MidiEvent.NOTE_OFF) {
+                    releaseNote(key, timestamp);
+                } else {  // cmd == MidiEvent.NOTE_ON
+                    startNote(key, velocityLevels[velocity & 0x7F], timestamp, timing);
                 }
-            } else {
-                Log.e(TAG, "Unknown Midi command " + cmd);
             }
+            // Other messages (controllers, pressure, clock, ...) don't affect the notes. Since the
+            // decoder now passes all of them on, we ignore them quietly.
         } else {
-            Log.e(TAG, "Encountered empty Midi message.");
+            Logger.e(TAG, "Encountered empty Midi message.");
         }
     }
 
     private void releaseNote(int key, long time)
     {
-        if (heldNotes.containsKey(key)) {
-            Note note = heldNotes.get(key);
-            note.endBeat = getBeatForTime(time);
-            note.held = false;
-            heldNotes.remove(key);
+        int i = heldNoteIndex[key];
+        if (i != NOT_HELD) {
+            endBeats[i] = getBeatForTime(time);
+            heldNoteIndex[key] = NOT_HELD;
+            --numHeldNotes;
         } else {
-            Log.e(TAG, "Trying to release note " + key + ", which is not held.");
+            Logger.e(TAG, "Trying to release note " + key + ", which is not held.");
         }
     }
 
-    private void startNote(int key, float level, long time)
+    private void startNote(int key, float level, long time, TimingAnalyzer timing)
     {
-        if (heldNotes.containsKey(key)) {
-            Log.e(TAG, "Trying to play note " + key + ", which is already held.");
+        if (heldNoteIndex[key] != NOT_HELD) {
+            Logger.e(TAG, "Trying to play note " + key + ", which is already held.");
         } else {
-            Note note = new Note(getBeatForTime(time), key, level);
-            notes.add(note);
-            heldNotes.put(key, note);
+            float beat = getBeatForTime(time);
+            addHeldNote(beat, key, level);
+            if (timing != null) {
+                timing.addOnset(beat, (t1 - t0) / numBeats);
+            }
+        }
+    }
+
+    // Appends a currently held note, growing the note arrays if necessary.
+    private void addHeldNote(float startBeat, int key, float level)
+    {
+        appendNote(startBeat, 0.0f, key, level);
+        heldNoteIndex[key] = numNotes - 1;
+        ++numHeldNotes;
+    }
+
+    // Appends a released note, e.g. when restoring a measure from MeasureHistory.
+    void appendNote(float startBeat, float endBeat, int key, float level)
+    {
+        if (numNotes == keys.length) {
+            int capacity = 2 * keys.length;
+            startBeats = Arrays.copyOf(startBeats, capacity);
+            endBeats = Arrays.copyOf(endBeats, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            levels = Arrays.copyOf(levels, capacity);
         }
+        startBeats[numNotes] = startBeat;
+        endBeats[numNotes] = endBeat;
+        keys[numNotes] = (byte) key;
+        levels[numNotes] = level;
+        ++numNotes;
     }
 
     // To be called when current time > this measure's end time. Makes the measure inactive.
     public void complete()
     {
-        for (Note note : heldNotes.values()) {
-            note.endBeat = getNumBeats();
-            note.held = false;
+        for (int key = 0; key < NUM_KEYS && numHeldNotes > 0; ++key) {
+            int i = heldNoteIndex[key];
+            if (i != NOT_HELD) {
+                endBeats[i] = getNumBeats();
+                heldNoteIndex[key] = NOT_HELD;
+                --numHeldNotes;
+            }
         }
-        heldNotes.clear();
         active = false;
     }
 
@@ -201,54 +260,19 @@ public class Measure
     {
         StringBuilder s = new StringBuilder();
         s.append("[");
-        for (Note note : notes) {
-            s.append(note.toString()).append(" ");
+        for (int i = 0; i < numNotes; ++i) {
+            s.append(String.format("(%.2f-%.2f %d %.2f", startBeats[i], endBeats[i], keys[i],
+                                   levels[i]));
+            if (isNoteHeld(i)) s.append(" h");
+            s.append(") ");
         }
         s.append("Held: ");
-        for (int key : heldNotes.keySet()) {
-            s.append(key).append(" ");
+        for (int key = 0; key < NUM_KEYS; ++key) {
+            if (heldNoteIndex[key] != NOT_HELD) {
+                s.append(key).append(" ");
+            }
         }
         s.append("]");
         return s.toString();
     }
-
-    public static class Note
-    {
-        // We use fractional "beats" instead of "seconds" to keep track of when a note was played.
-        // This will make handling tempo changes easier.
-        public float startBeat;
-        public float endBeat;
-        public float level;  // ranges from 0 to 1
-        public int key;
-        boolean held;
-
-        // Creates a currently held note.
-        public Note(float start, int k, float lvl)
-        {
-            startBeat = start;
-            endBeat = 0.0f;
-            key = k;
-            level = lvl;
-            held = true;
-        }
-
-        // Creates an already released note.
-        public Note(float start, float end, int k, float lvl)
-        {
-            startBeat = start;
-            endBeat = end;
-            key = k;
-            level = lvl;
-            held = false;
-        }
-
-        public String toString()
-        {
-            StringBuilder s = new StringBuilder();
-            s.append(String.format("(%.2f-%.2f %d %.2f", startBeat, endBeat, key, level));
-            if (held) s.append(" h");
-            s.append(")");
-            return s.toString();
-        }
-    }
 }
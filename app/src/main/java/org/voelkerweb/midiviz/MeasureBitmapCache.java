@@ -0,0 +1,121 @@
+package org.voelkerweb.midiviz;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.util.LruCache;
+
+/**
+ * Caches rasterized images of completed measures. Once a measure is no longer active nothing in it
+ * can change, so it only needs to be drawn once. Bitmaps are kept in an LRU cache that is bounded
+ * by the number of bytes used, and keyed by the measure (via its start time) and layout size.
+ */
+public class MeasureBitmapCache
+{
+    // Enough for two dozen measures of 560x200 pixels.
+    private static final int MAX_BYTES = 12 * 1024 * 1024;
+
+    private final LruCache<Key, Bitmap> cache;
+    private final Key probe = new Key();  // reused for lookups, never stored
+    private final Canvas bitmapCanvas = new Canvas();
+    private final NotePainter.Area bitmapArea = new NotePainter.Area();
+
+    // The most recently evicted bitmap, which we recycle for the next measure to be rendered.
+    private Bitmap spare;
+
+    public MeasureBitmapCache()
+    {
+        cache = new LruCache<Key, Bitmap>(MAX_BYTES) {
+            @Override
+            protected int sizeOf(Key key, Bitmap bitmap)
+            {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue,
+                                        Bitmap newValue)
+            {
+                if (evicted) {
+                    spare = oldValue;
+                }
+            }
+        };
+    }
+
+    /**
+     * Draws a completed measure into the given area, rendering it into a new cache entry first
+     * unless an image for the same measure and size is cached already.
+     */
+    public void drawMeasure(Measure measure, NotePainter painter, Canvas canvas,
+                            NotePainter.Area area)
+    {
+        // We add a pixel so that lines drawn on the right and bottom borders are included.
+        int width = (int) Math.ceil(area.x1 - area.x0) + 1;
+        int height = (int) Math.ceil(area.y1 - area.y0) + 1;
+        probe.set(measure.getStartTime(), width, height);
+        Bitmap bitmap = cache.get(probe);
+        if (bitmap == null) {
+            bitmap = render(measure, painter, width, height);
+            cache.put(new Key(measure.getStartTime(), width, height), bitmap);
+        }
+        canvas.drawBitmap(bitmap, area.x0, area.y0, null);
+    }
+
+    public void clear()
+    {
+        cache.evictAll();
+        spare = null;
+    }
+
+    private Bitmap render(Measure measure, NotePainter painter, int width, int height)
+    {
+        Bitmap bitmap;
+        if (spare != null && spare.getWidth() == width && spare.getHeight() == height) {
+            bitmap = spare;
+            bitmap.eraseColor(Color.TRANSPARENT);
+        } else {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        spare = null;
+        bitmapCanvas.setBitmap(bitmap);
+        bitmapArea.assign(0.0f, 0.0f, width - 1, height - 1);
+        painter.drawMeasure(measure, bitmapCanvas, bitmapArea, measure.getEndTime());
+        bitmapCanvas.setBitmap(null);
+        return bitmap;
+    }
+
+    private static class Key
+    {
+        long startTime;
+        int width, height;
+
+        Key() {}
+
+        Key(long t, int w, int h)
+        {
+            set(t, w, h);
+        }
+
+        void set(long t, int w, int h)
+        {
+            startTime = t;
+            width = w;
+            height = h;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return startTime == other.startTime && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (startTime ^ (startTime >>> 32)) * 31 * 31 + width * 31 + height;
+        }
+    }
+}
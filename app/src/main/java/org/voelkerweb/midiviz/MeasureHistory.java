@@ -0,0 +1,546 @@
+package org.voelkerweb.midiviz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Scrollback history for measures that NoteTracker no longer keeps live, in two tiers:
+ * <pre>
+ *   compacted  recent history, encoded into a fixed circular int arena in memory
+ *   spilled    everything older, moved from the arena to a file and read back on demand
+ * </pre>
+ * A compacted measure is a header of HEADER_INTS ints (length, start time, duration, beats and
+ * note count), followed by two ints per note: start and end as 16 bit fractions of the measure,
+ * and the key and a 16 bit level. That's much less than a live Measure, which also carries a key
+ * table and spare capacity. When the arena or its index is full, the oldest compacted measures
+ * are appended to the spill file as they are, and only their file offsets stay in memory.
+ * <p/>
+ * get() decodes measures into a small pool of Measure objects, which doubles as a cache, so
+ * redrawing a scrolled back screen doesn't touch the arena or the file again. Memory use is
+ * bounded by the arena, the pool and eight bytes per spilled measure (a few hundred KB for a
+ * day of playing). If the spill file can't be written, the oldest measures are discarded instead.
+ * <p/>
+ * The caller's thread (the UI thread) never reads the spill file. get() and prefetch() queue
+ * spilled measures for a SpillReader thread, which reads them into LOAD_SLOTS slots and notifies
+ * the load listener; until then, get() returns null, and the caller draws a placeholder. Spilled
+ * measures never change, so the reader only needs their file offsets.
+ * <p/>
+ * Measure indices count from the oldest measure ever added (0). Apart from the spill reader, all
+ * methods must be called from the same thread.
+ */
+public class MeasureHistory
+{
+    private static final String TAG = "MeasureHistory";
+
+    private static final int ARENA_INTS = 256 * 1024;  // 1 MiB, several hundred busy measures
+    private static final int INDEX_CAPACITY = 4096;  // compacted measures, a power of two
+    private static final int DECODED_CACHE_SIZE = 16;  // more than fit on the screen
+    private static final int HEADER_INTS = 6;
+    private static final int INTS_PER_NOTE = 2;
+    private static final float FRACTION_SCALE = 65535.0f;
+    private static final int DISCARDED = -1;
+    private static final int LOAD_SLOTS = 8;  // spilled measures being read or waiting for get()
+
+    private final int[] arena = new int[ARENA_INTS];
+    private long arenaHead = 0;  // arena position of the oldest compacted measure
+    private long arenaTail = 0;  // arena position for the next compacted measure
+    private final long[] arenaPositions = new long[INDEX_CAPACITY];  // indexed by measure index
+
+    private long numMeasures = 0;
+    private long numSpilled = 0;  // measures [0, numSpilled) are on disk, the rest in the arena
+
+    private final File spillFile;
+    private RandomAccessFile spillRaf;
+    private FileChannel spillChannel;
+    private long spillSize = 0;
+    private long[] spillOffsets = new long[INDEX_CAPACITY];  // indexed by measure index
+    private ByteBuffer ioBuffer = newIoBuffer(1024);
+
+    private int[] scratch = new int[HEADER_INTS + INTS_PER_NOTE * 64];  // encoding buffer
+
+    private final Measure[] decoded = new Measure[DECODED_CACHE_SIZE];
+    private final long[] decodedIndex = new long[DECODED_CACHE_SIZE];
+    private int nextVictim = 0;
+
+    // Loads of spilled measures, guarded by 'loadIndex'. A slot is free if its index is -1.
+    // Otherwise loadInts holds null while queued, READING, FAILED or the encoded measure.
+    private static final int[] READING = new int[0];
+    private static final int[] FAILED = new int[0];
+    private final long[] loadIndex = new long[LOAD_SLOTS];
+    private final long[] loadOffset = new long[LOAD_SLOTS];
+    private final int[][] loadInts = new int[LOAD_SLOTS][];
+    private int nextLoadVictim = 0;
+    private boolean closed = false;
+    private SpillReader spillReader;
+    private volatile Runnable loadListener;
+
+    // Creates an empty history that spills to 'file', which is replaced. Without a file, the
+    // oldest measures are discarded once the arena is full.
+    public MeasureHistory(File file)
+    {
+        spillFile = file;
+        Arrays.fill(decodedIndex, -1);
+        Arrays.fill(loadIndex, -1);
+        if (file == null) {
+            return;
+        }
+        try {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot replace " + file.getPath());
+            }
+            spillRaf = new RandomAccessFile(file, "rw");
+            spillChannel = spillRaf.getChannel();
+            spillReader = new SpillReader(spillChannel);
+            spillReader.start();
+        } catch (IOException e) {
+            Logger.e(TAG, "No spill file, old measures will be discarded: " + e.getMessage());
+            closeSpillFile();
+        }
+    }
+
+    // Number of measures in the history.
+    public int size()
+    {
+        return (int) numMeasures;
+    }
+
+    // Adds a completed measure as the newest one. The measure itself is not retained.
+    public void add(Measure measure)
+    {
+        int length = encode(measure);
+        long index = numMeasures;
+        if (length > ARENA_INTS) {
+            // Doesn't fit the arena at all (thousands of notes); spill it right away.
+            while (numSpilled < numMeasures) {
+                spillOldest();
+            }
+            growSpillOffsets(index);
+            spillOffsets[(int) index] = write(scratch, 0, length);
+            ++numSpilled;
+            ++numMeasures;
+            return;
+        }
+        while (arenaTail + length - arenaHead > ARENA_INTS ||
+                numMeasures - numSpilled == INDEX_CAPACITY) {
+            spillOldest();
+        }
+        long position = arenaTail;
+        for (int i = 0; i < length; ++i) {
+            arena[(int) ((position + i) % ARENA_INTS)] = scratch[i];
+        }
+        arenaPositions[(int) (index % INDEX_CAPACITY)] = position;
+        arenaTail += length;
+        ++numMeasures;
+    }
+
+    // Called on the spill reader thread whenever a spilled measure has been read, so get() can
+    // return it now.
+    public void setLoadListener(Runnable listener)
+    {
+        loadListener = listener;
+    }
+
+    /**
+     * Returns the measure with the given index, decoded into a pooled Measure object that stays
+     * valid for at least DECODED_CACHE_SIZE - 1 further calls. Returns null if the measure has been
+     * discarded, could not be read, or is spilled and still being read (see setLoadListener()).
+     */
+    public Measure get(int index)
+    {
+        if (index < 0 || index >= numMeasures) {
+            return null;
+        }
+        int cached = findDecoded(index);
+        if (cached >= 0) {
+            return decoded[cached];
+        }
+        if (index >= numSpilled) {
+            Measure measure = nextDecoded();
+            decodeFromArena(arenaPositions[index % INDEX_CAPACITY], measure);
+            return storeDecoded(index, measure);
+        }
+        int[] ints = load(index, true);
+        if (ints == null) {
+            return null;
+        }
+        Measure measure = nextDecoded();
+        bufferSource.ints = ints;
+        decode(bufferSource, measure);
+        return storeDecoded(index, measure);
+    }
+
+    // Starts reading a spilled measure in the background, e.g. one just outside the screen, so
+    // get() can return it right away later. Does nothing for other measures.
+    public void prefetch(int index)
+    {
+        if (index >= 0 && index < numSpilled && findDecoded(index) < 0) {
+            load(index, false);
+        }
+    }
+
+    private int findDecoded(long index)
+    {
+        for (int i = 0; i < DECODED_CACHE_SIZE; ++i) {
+            if (decodedIndex[i] == index) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Frees the next pool slot, round-robin, and returns its Measure.
+    private Measure nextDecoded()
+    {
+        int slot = nextVictim;
+        if (decoded[slot] == null) {
+            decoded[slot] = new Measure(0, 0, 1, false);
+        }
+        decodedIndex[slot] = -1;
+        return decoded[slot];
+    }
+
+    private Measure storeDecoded(long index, Measure measure)
+    {
+        decodedIndex[nextVictim] = index;
+        nextVictim = (nextVictim + 1) % DECODED_CACHE_SIZE;
+        return measure;
+    }
+
+    /**
+     * Returns the encoding of a spilled measure if the spill reader has read it and 'take' is set,
+     * and frees its load slot. Otherwise queues it, unless it is queued or read already, and
+     * returns null. Also returns null for measures that were discarded or failed to load.
+     */
+    private int[] load(long index, boolean take)
+    {
+        long offset = spillOffsets[(int) index];
+        if (offset == DISCARDED || spillReader == null) {
+            return null;
+        }
+        synchronized (loadIndex) {
+            for (int i = 0; i < LOAD_SLOTS; ++i) {
+                if (loadIndex[i] == index) {
+                    int[] ints = loadInts[i];
+                    if (!take || ints == null || ints == READING || ints == FAILED) {
+                        return null;  // FAILED stays in its slot, so it isn't retried forever.
+                    }
+                    loadIndex[i] = -1;
+                    loadInts[i] = null;
+                    return ints;
+                }
+            }
+            // Queue it in a free slot, or replace the load least recently queued.
+            int slot = -1;
+            for (int i = 0; i < LOAD_SLOTS && slot < 0; ++i) {
+                if (loadIndex[i] == -1) {
+                    slot = i;
+                }
+            }
+            if (slot < 0) {
+                slot = nextLoadVictim;
+                nextLoadVictim = (nextLoadVictim + 1) % LOAD_SLOTS;
+            }
+            loadIndex[slot] = index;
+            loadOffset[slot] = offset;
+            loadInts[slot] = null;
+            loadIndex.notifyAll();
+            return null;
+        }
+    }
+
+    // Stops the spill reader and deletes the spill file. The history must not be used anymore.
+    public void close()
+    {
+        if (spillReader != null) {
+            synchronized (loadIndex) {
+                closed = true;
+                loadIndex.notifyAll();
+            }
+            try {
+                spillReader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeSpillFile();
+        if (spillFile != null && spillFile.exists() && !spillFile.delete()) {
+            Logger.e(TAG, "Could not delete " + spillFile.getPath());
+        }
+    }
+
+    // Encodes the measure into 'scratch' and returns the number of ints used.
+    private int encode(Measure measure)
+    {
+        int numNotes = measure.getNoteCount();
+        int length = HEADER_INTS + INTS_PER_NOTE * numNotes;
+        if (scratch.length < length) {
+            scratch = new int[Math.max(length, 2 * scratch.length)];
+        }
+        long startTime = measure.getStartTime();
+        int numBeats = measure.getNumBeats();
+        scratch[0] = length;
+        scratch[1] = (int) (startTime >>> 32);
+        scratch[2] = (int) startTime;
+        scratch[3] = (int) ((measure.getEndTime() - startTime) / 1000);  // micros
+        scratch[4] = numBeats;
+        scratch[5] = numNotes;
+        for (int i = 0; i < numNotes; ++i) {
+            int start = toFraction(measure.getNoteStartBeat(i) / numBeats);
+            int end = toFraction(measure.getNoteEndBeat(i) / numBeats);
+            int level = toFraction(measure.getNoteLevel(i));
+            scratch[HEADER_INTS + INTS_PER_NOTE * i] = start | end << 16;
+            scratch[HEADER_INTS + INTS_PER_NOTE * i + 1] = measure.getNoteKey(i) | level << 8;
+        }
+        return length;
+    }
+
+    private static int toFraction(float value)
+    {
+        return Math.round(Math.min(Math.max(value, 0.0f), 1.0f) * FRACTION_SCALE);
+    }
+
+    // Restores a measure from its encoding, which is either in the arena or read from the file.
+    private static void decode(IntSource encoded, Measure measure)
+    {
+        long startTime = (long) encoded.get(1) << 32 | (encoded.get(2) & 0xFFFFFFFFL);
+        long duration = (encoded.get(3) & 0xFFFFFFFFL) * 1000;
+        int numBeats = encoded.get(4);
+        int numNotes = encoded.get(5);
+        measure.reset(startTime, duration, numBeats, false);
+        for (int i = 0; i < numNotes; ++i) {
+            int times = encoded.get(HEADER_INTS + INTS_PER_NOTE * i);
+            int keyAndLevel = encoded.get(HEADER_INTS + INTS_PER_NOTE * i + 1);
+            measure.appendNote((times & 0xFFFF) / FRACTION_SCALE * numBeats,
+                               (times >>> 16) / FRACTION_SCALE * numBeats,
+                               keyAndLevel & 0x7F,
+                               (keyAndLevel >>> 8) / FRACTION_SCALE);
+        }
+    }
+
+    // Random access to the ints of one encoded measure.
+    private interface IntSource
+    {
+        int get(int i);
+    }
+
+    private final ArenaSource arenaSource = new ArenaSource();
+    private final BufferSource bufferSource = new BufferSource();
+
+    private class ArenaSource implements IntSource
+    {
+        long base;
+
+        public int get(int i)
+        {
+            return arena[(int) ((base + i) % ARENA_INTS)];
+        }
+    }
+
+    private static class BufferSource implements IntSource
+    {
+        int[] ints;
+
+        public int get(int i)
+        {
+            return ints[i];
+        }
+    }
+
+    private void decodeFromArena(long position, Measure measure)
+    {
+        arenaSource.base = position;
+        decode(arenaSource, measure);
+    }
+
+    /**
+     * Reads queued spilled measures from the spill file, so the UI thread never waits for the
+     * disk. Positional reads don't interfere with the appends on the other thread, and the bytes
+     * of a spilled measure never change once written.
+     */
+    private class SpillReader extends Thread
+    {
+        private final FileChannel channel;
+        private ByteBuffer buffer = newIoBuffer(1024);
+
+        SpillReader(FileChannel spillChannel)
+        {
+            super("MeasureHistory");
+            channel = spillChannel;
+        }
+
+        @Override
+        public void run()
+        {
+            while (true) {
+                int slot;
+                long index;
+                long offset;
+                synchronized (loadIndex) {
+                    slot = nextQueued();
+                    while (slot < 0 && !closed) {
+                        try {
+                            loadIndex.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        slot = nextQueued();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    index = loadIndex[slot];
+                    offset = loadOffset[slot];
+                    loadInts[slot] = READING;
+                }
+                int[] ints = readMeasure(offset);
+                synchronized (loadIndex) {
+                    if (loadIndex[slot] != index) {
+                        continue;  // Replaced by a newer request while we were reading.
+                    }
+                    loadInts[slot] = ints != null ? ints : FAILED;
+                }
+                Runnable listener = loadListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+        }
+
+        // Must hold the lock on loadIndex.
+        private int nextQueued()
+        {
+            for (int i = 0; i < LOAD_SLOTS; ++i) {
+                if (loadIndex[i] != -1 && loadInts[i] == null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Returns the encoded measure at 'offset', or null if it can't be read.
+        private int[] readMeasure(long offset)
+        {
+            try {
+                if (!read(offset, 4)) {
+                    return null;
+                }
+                int length = buffer.getInt(0);
+                if (length < HEADER_INTS || !read(offset, 4 * length)) {
+                    return null;
+                }
+                int[] ints = new int[length];
+                buffer.asIntBuffer().get(ints);
+                return ints;
+            } catch (IOException e) {
+                Logger.e(TAG, "Could not read measure: " + e.getMessage());
+                return null;
+            }
+        }
+
+        // Reads 'length' bytes at 'offset' into the start of the buffer.
+        private boolean read(long offset, int length) throws IOException
+        {
+            if (buffer.capacity() < length) {
+                buffer = newIoBuffer(Math.max(length, 2 * buffer.capacity()));
+            }
+            buffer.clear();
+            buffer.limit(length);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    return false;
+                }
+                position += n;
+            }
+            buffer.clear();
+            return true;
+        }
+    }
+
+    // Moves the oldest compacted measure from the arena to the spill file.
+    private void spillOldest()
+    {
+        long index = numSpilled;
+        long position = arenaPositions[(int) (index % INDEX_CAPACITY)];
+        int length = arena[(int) (position % ARENA_INTS)];
+        growSpillOffsets(index);
+        int start = (int) (position % ARENA_INTS);
+        int first = Math.min(length, ARENA_INTS - start);
+        long offset = write(arena, start, first);
+        if (first < length && offset != DISCARDED) {
+            // Wrapped around the end of the arena; the rest follows in the file.
+            if (write(arena, 0, length - first) == DISCARDED) {
+                offset = DISCARDED;
+            }
+        }
+        spillOffsets[(int) index] = offset;
+        arenaHead = position + length;
+        ++numSpilled;
+    }
+
+    // Appends ints to the spill file. Returns their offset, or DISCARDED if there is no file.
+    private long write(int[] ints, int start, int length)
+    {
+        if (spillChannel == null) {
+            return DISCARDED;
+        }
+        ensureIoBuffer(4 * length);
+        ioBuffer.asIntBuffer().put(ints, start, length);
+        ioBuffer.limit(4 * length);
+        long offset = spillSize;
+        try {
+            long position = offset;
+            while (ioBuffer.hasRemaining()) {
+                position += spillChannel.write(ioBuffer, position);
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Cannot spill, old measures will be discarded: " + e.getMessage());
+            closeSpillFile();
+            return DISCARDED;
+        }
+        spillSize += 4 * length;
+        return offset;
+    }
+
+    private void ensureIoBuffer(int bytes)
+    {
+        if (ioBuffer.capacity() < bytes) {
+            ioBuffer = newIoBuffer(Math.max(bytes, 2 * ioBuffer.capacity()));
+        }
+        ioBuffer.clear();
+    }
+
+    private static ByteBuffer newIoBuffer(int bytes)
+    {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    private void growSpillOffsets(long index)
+    {
+        if (index >= spillOffsets.length) {
+            spillOffsets = Arrays.copyOf(spillOffsets, 2 * spillOffsets.length);
+        }
+    }
+
+    private void closeSpillFile()
+    {
+        try {
+            if (spillChannel != null) {
+                spillChannel.close();
+            }
+            if (spillRaf != null) {
+                spillRaf.close();
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not close spill file: " + e.getMessage());
+        }
+        spillChannel = null;
+        spillRaf = null;
+    }
+}
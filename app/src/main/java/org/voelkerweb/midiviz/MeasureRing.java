@@ -0,0 +1,87 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * A fixed-capacity circular store of the live measures, oldest first, that recycles Measure
+ * instances.
+ * <p/>
+ * Removing the oldest measure only moves the head; the instance stays in its slot, and addNewest()
+ * hands it out again once the ring comes around. So after the first pass, starting a measure
+ * doesn't allocate anything, and the note arrays a measure has grown to are reused as well.
+ */
+public class MeasureRing
+{
+    private Measure[] slots;
+    private int head = 0;  // slot of the oldest measure
+    private int size = 0;
+
+    public MeasureRing(int capacity)
+    {
+        slots = new Measure[capacity];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int capacity()
+    {
+        return slots.length;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public boolean isFull()
+    {
+        return size == slots.length;
+    }
+
+    // Returns the i-th measure, 0 being the oldest.
+    public Measure get(int i)
+    {
+        return slots[(head + i) % slots.length];
+    }
+
+    public Measure getLatest()
+    {
+        return get(size - 1);
+    }
+
+    /**
+     * Appends a measure as the newest one and returns it. The instance is recycled from a removed
+     * measure if possible, so callers must reinitialize it (see Measure.reset() and
+     * Measure.continueFrom()). The ring must not be full.
+     */
+    public Measure addNewest()
+    {
+        int slot = (head + size) % slots.length;
+        if (slots[slot] == null) {
+            slots[slot] = new Measure(0, 0, 1, false);
+        }
+        ++size;
+        return slots[slot];
+    }
+
+    // Removes the oldest measure and returns it. It stays valid until the next addNewest().
+    public Measure removeOldest()
+    {
+        Measure oldest = slots[head];
+        head = (head + 1) % slots.length;
+        --size;
+        return oldest;
+    }
+
+    // Changes the capacity, keeping the measures in order. Must not be less than size().
+    public void resize(int capacity)
+    {
+        Measure[] resized = new Measure[capacity];
+        for (int i = 0; i < size; ++i) {
+            resized[i] = get(i);
+        }
+        slots = resized;
+        head = 0;
+    }
+}
@@ -3,8 +3,7 @@ package org.voelkerweb.midiviz;
 import android.content.Context;
 import android.media.AudioManager;
 import android.media.SoundPool;
-import android.os.Handler;
-import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * Getting timing accuracy better than ~10-20ms is quite tricky. Here are a few interesting pages:
@@ -25,79 +24,133 @@ import android.os.SystemClock;
 /**
  * Does tic toc.
  */
-public class Metronome
+public class Metronome implements NoteTracker.DingListener
 {
     private static final String TAG = "Metronome";
     private static final boolean soundOn = true;
 
-    // TODO: it's rather hacky to do the time conversion here. Maybe we should measure
-    // everything in uptime. Note that currentTime is affected by e.g. daylight savings.
-    private static long timeDelta = System.currentTimeMillis() - SystemClock.uptimeMillis();
+    // Metronome engines, see Parameters.metronomeEngine().
+    public static final String ENGINE_SAMPLES = "samples";
+    public static final String ENGINE_SYNTHESIZED = "synthesized";
 
-    private Handler handler = new Handler();
-    private Parameters mParameters;
+    private Context mContext;
+    private MetronomeScheduler scheduler;
     private SoundPool soundPool = new SoundPool(5, AudioManager.STREAM_MUSIC, 0);
     private int bellSound;
     private int tocSound;
+    private volatile int numSoundsLoaded = 0;
 
-    private Runnable bellTask = new Runnable() {
-        public void run() {
-            ding(true);
-        }
-    };
+    // Alternative engine that places synthesized clicks at exact sample offsets in a PCM stream.
+    private ClickTrackPlayer clickTrack;
 
-    private Runnable tocTask = new Runnable() {
-        public void run() {
-            ding(false);
+    private MetronomeScheduler.Listener clickListener = new MetronomeScheduler.Listener() {
+        public void onClick(boolean bell) {
+            ding(bell);
         }
     };
 
-    public Metronome(Context context, Parameters parameters)
+    public Metronome(Context context, Clock clock)
     {
-        mParameters = parameters;
+        mContext = context;
+        scheduler = new MetronomeScheduler(clock, clickListener);
+        scheduler.start();
+        clickTrack = new ClickTrackPlayer(clock);
+        soundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            public void onLoadComplete(SoundPool pool, int sampleId, int status) {
+                if (status == 0) {
+                    ++numSoundsLoaded;
+                }
+            }
+        });
         bellSound = soundPool.load(context, R.raw.dialog_information_trimmed, 1);
         tocSound = soundPool.load(context, R.raw.button_pressed_trimmed, 1);
-        // TODO: should wait for soundPool.OnLoadCompleteListener callback.
     }
 
-    // Sounds the metronome bell at a given time in the future. Multiple times can be queued, but
-    // it is expected that consecutive calls to dingAt have monotonically increasing times.
-    // 'bell' refers to the measure start bell, as opposed to the beat marker.
-    public void dingAt(long time, boolean bell)
+    // Schedules the metronome dings of a measure. times[] contains the Clock times of all beats
+    // of the measure including first and last (see Measure.getDingTimes()). The first one is
+    // skipped, since it was already scheduled as the last ding of the previous measure, and the
+    // last one sounds the measure start bell, as opposed to the beat marker.
+    public void scheduleMeasure(long[] times)
     {
-        if (mParameters.metronomeOn()) {
-            //Log.d(TAG, (bell ? "Ding" : "Toc") + " at " + Util.formatTime(time));
-            // TODO: I'm sure we can pass arguments to the runnable object somehow.
-            handler.postAtTime(bell ? bellTask : tocTask, currentTimeToUptime(time));
+        Parameters parameters = Parameters.get(mContext);
+        if (!parameters.metronomeOn()) {
+            return;
+        }
+        if (ENGINE_SYNTHESIZED.equals(parameters.metronomeEngine())) {
+            clickTrack.start();
+            boolean bellOn = parameters.metronomeBell();
+            float tocVolume = tocVolume(parameters);
+            float bellVolume = bellVolume(parameters);
+            ClickTrackGenerator generator = clickTrack.getGenerator();
+            for (int n = 1; n < times.length; ++n) {
+                generator.scheduleClickAt(times[n], bellOn && n == times.length - 1,
+                                          tocVolume, bellVolume);
+            }
+        } else {
+            clickTrack.stop();
+            scheduler.scheduleMeasure(times, 1, true);
         }
     }
 
     // Removes all outstanding dings from the queue. For use when parent activity is paused.
     public void pause()
     {
-        handler.removeCallbacks(bellTask);
-        handler.removeCallbacks(tocTask);
+        scheduler.clear();
+        clickTrack.stop();
+        Log.d(TAG, scheduler.getJitterHistogram().toString());
     }
 
-    private static long currentTimeToUptime(long currentTime) {
-        return currentTime - timeDelta;
+    // Stops the scheduler thread and releases the audio resources. For use when the parent activity
+    // is destroyed; the metronome must not be used anymore.
+    public void close()
+    {
+        scheduler.shutdown();
+        try {
+            scheduler.join();  // It must not play from the SoundPool after it has been released.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        clickTrack.release();
+        soundPool.release();
+    }
+
+    // Firing error of the dings so far, i.e. actual minus scheduled time.
+    public LatencyHistogram getJitterHistogram()
+    {
+        return scheduler.getJitterHistogram();
     }
 
+    // Runs on the scheduler thread. SoundPool is thread safe.
     private void ding(boolean bell)
     {
         //Log.d(TAG, bell ? "ding!" : "toc!");
         if (!soundOn) {
             return;
         }
+        // Both sounds need to be loaded before they can be played.
+        if (numSoundsLoaded < 2) {
+            return;
+        }
         // We always play the toc sound and, if bell==true, the bell sound on top. This leads to a
         // more consistent perception.
         // TODO: play tocSound at a lower volume if superimposed with bell?
-        // TODO: volume settings
-        final float tocVolume = 1.0f * mParameters.metronomeVolume();
-        final float bellVolume = 0.5f * mParameters.metronomeVolume();
+        Parameters parameters = Parameters.get(mContext);  // one consistent snapshot per ding
+        float tocVolume = tocVolume(parameters);
         soundPool.play(tocSound, tocVolume, tocVolume, 1, 0, 1.0f);
-        if (mParameters.metronomeBell() && bell) {
+        if (parameters.metronomeBell() && bell) {
+            float bellVolume = bellVolume(parameters);
             soundPool.play(bellSound, bellVolume, bellVolume, 1, 0, 1.0f);
         }
     }
+
+    // TODO: volume settings
+    private static float tocVolume(Parameters parameters)
+    {
+        return 1.0f * parameters.metronomeVolume();
+    }
+
+    private static float bellVolume(Parameters parameters)
+    {
+        return 0.5f * parameters.metronomeVolume();
+    }
 }
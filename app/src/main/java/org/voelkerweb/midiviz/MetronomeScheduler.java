@@ -0,0 +1,135 @@
+package org.voelkerweb.midiviz;
+
+import android.os.Process;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A dedicated thread that fires metronome clicks at precise Clock times, independent of the UI
+ * thread's message queue.
+ * <p/>
+ * It uses the hybrid sleep described in Metronome: a coarse Object.wait() until shortly before
+ * the target time, followed by LockSupport.parkNanos() against the clock for the remainder. The
+ * difference between scheduled and actual firing time of every click is recorded in a histogram.
+ */
+public class MetronomeScheduler extends Thread
+{
+    private static final String TAG = "MetronomeScheduler";
+
+    // Wake up from the coarse sleep this long before the target time.
+    private static final long COARSE_MARGIN_NANOS = 3 * Clock.NANOS_PER_MILLI;
+
+    // Longest single parkNanos(); parking may overshoot, so we approach the target in steps.
+    private static final long MAX_PARK_NANOS = 250 * 1000;
+
+    // Maximum number of queued clicks. A measure has at most a few dozen beats.
+    private static final int QUEUE_CAPACITY = 256;
+
+    public interface Listener
+    {
+        // Called on the scheduler thread at the time of a click.
+        public void onClick(boolean bell);
+    }
+
+    private final Clock clock;
+    private final Listener listener;
+    private final LatencyHistogram jitter = new LatencyHistogram("metronome jitter");
+
+    // A ring of scheduled clicks, in increasing time order, guarded by 'lock'.
+    private final Object lock = new Object();
+    private final long[] times = new long[QUEUE_CAPACITY];
+    private final boolean[] bells = new boolean[QUEUE_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private boolean stopped = false;
+
+    public MetronomeScheduler(Clock schedulerClock, Listener clickListener)
+    {
+        super(TAG);
+        clock = schedulerClock;
+        listener = clickListener;
+        setDaemon(true);
+    }
+
+    /**
+     * Schedules the clicks of a whole measure: times[first..times.length) are beat times, and the
+     * last one is a bell if lastIsBell is set. Times must not be earlier than those of clicks
+     * scheduled before. Clicks that don't fit into the queue are dropped.
+     */
+    public void scheduleMeasure(long[] beatTimes, int first, boolean lastIsBell)
+    {
+        synchronized (lock) {
+            for (int n = first; n < beatTimes.length && size < QUEUE_CAPACITY; ++n) {
+                int idx = (head + size) % QUEUE_CAPACITY;
+                times[idx] = beatTimes[n];
+                bells[idx] = lastIsBell && n == beatTimes.length - 1;
+                ++size;
+            }
+            lock.notify();
+        }
+    }
+
+    // Removes all scheduled clicks.
+    public void clear()
+    {
+        synchronized (lock) {
+            size = 0;
+            lock.notify();
+        }
+    }
+
+    public void shutdown()
+    {
+        synchronized (lock) {
+            stopped = true;
+            lock.notify();
+        }
+    }
+
+    // Firing error (actual minus scheduled time) of all clicks so far.
+    public LatencyHistogram getJitterHistogram()
+    {
+        return jitter;
+    }
+
+    @Override
+    public void run()
+    {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        while (true) {
+            long target;
+            boolean bell;
+            synchronized (lock) {
+                while (!stopped && (size == 0 ||
+                        times[head] - clock.nanoTime() > COARSE_MARGIN_NANOS)) {
+                    try {
+                        if (size == 0) {
+                            lock.wait();
+                        } else {
+                            long remaining = times[head] - clock.nanoTime() - COARSE_MARGIN_NANOS;
+                            lock.wait(Math.max(remaining / Clock.NANOS_PER_MILLI, 1));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                target = times[head];
+                bell = bells[head];
+                head = (head + 1) % QUEUE_CAPACITY;
+                --size;
+            }
+
+            // Fine sleep for the remainder, outside the lock so scheduling isn't held up.
+            long remaining;
+            while ((remaining = target - clock.nanoTime()) > 0) {
+                LockSupport.parkNanos(Math.min(remaining, MAX_PARK_NANOS));
+            }
+            // Record before the listener runs, so the cost of playing the click isn't counted.
+            jitter.record(clock.nanoTime() - target);
+            listener.onClick(bell);
+        }
+    }
+}
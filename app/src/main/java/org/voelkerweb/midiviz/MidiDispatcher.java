@@ -0,0 +1,86 @@
+package org.voelkerweb.midiviz;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes events from a polling MidiInterface to a registered MidiListener. Shared by the
+ * MidiInterface implementations to implement setListener().
+ * <p/>
+ * Whenever the receiving thread reports new events, the dispatcher drains them via getEvents() on
+ * the listener's executor and hands them to the listener. Notifications that arrive while a
+ * delivery is still pending are coalesced into it, so a burst of events costs a single task.
+ * Without an executor, events are drained and delivered directly on a receiving thread. If
+ * several threads report events at once, only one of them drains at a time and picks up the
+ * notifications of the others, so the listener is never called concurrently and the event sources
+ * still see a single consumer.
+ * <p/>
+ * Since draining consumes events, an interface with a listener should only be polled on the
+ * listener's executor thread.
+ */
+class MidiDispatcher implements Runnable
+{
+    private final MidiInterface source;
+    private final MidiEventBatch batch = new MidiEventBatch(256);
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private final AtomicBoolean draining = new AtomicBoolean(false);  // inline delivery only
+
+    private volatile MidiListener listener;
+    private volatile Executor executor;
+
+    MidiDispatcher(MidiInterface midiSource)
+    {
+        source = midiSource;
+    }
+
+    void setListener(MidiListener midiListener, Executor deliveryExecutor)
+    {
+        executor = deliveryExecutor;
+        listener = midiListener;
+    }
+
+    boolean hasListener()
+    {
+        return listener != null;
+    }
+
+    // Called by the receiving thread after new events became available.
+    void notifyEventsAvailable()
+    {
+        if (listener == null) {
+            return;
+        }
+        Executor e = executor;
+        if (e == null) {
+            pending.set(true);
+            // Whoever holds 'draining' re-checks 'pending' after releasing it, so a notification
+            // that arrives while another thread drains is never lost.
+            while (pending.get() && draining.compareAndSet(false, true)) {
+                try {
+                    run();
+                } finally {
+                    draining.set(false);
+                }
+            }
+        } else if (pending.compareAndSet(false, true)) {
+            e.execute(this);
+        }
+    }
+
+    // Drains and delivers the events. Runs on the listener's executor, or inline while holding
+    // 'draining'.
+    @Override
+    public void run()
+    {
+        pending.set(false);
+        MidiListener l = listener;
+        if (l == null) {
+            return;
+        }
+        batch.clear();
+        source.getEvents(batch);
+        if (!batch.isEmpty()) {
+            l.onMidiEvents(batch);
+        }
+    }
+}
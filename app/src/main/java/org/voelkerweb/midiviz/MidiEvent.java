@@ -0,0 +1,113 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * Helpers for the compact, primitive representation of MIDI events that replaces per-message
+ * objects throughout the pipeline.
+ * <p/>
+ * A MIDI message of up to three bytes is packed into the lower 32 bits of a long:
+ * <pre>
+ *   bits  0- 7  status byte (e.g. 0x90 for Note On, channel 1)
+ *   bits  8-15  first data byte (e.g. key)
+ *   bits 16-23  second data byte (e.g. velocity)
+ *   bits 24-25  message length in bytes (1..3)
+ *   bits 26-27  reserved, zero
+ *   bits 28-31  USB-MIDI cable number the message arrived on (0 if unknown)
+ * </pre>
+ * The upper 32 bits hold the event's timestamp as an unsigned offset in microseconds from the base
+ * time of the MidiEventBatch containing it, which covers batches of over an hour. Only the lower
+ * 32 bits ("message") are meaningful on their own.
+ */
+public class MidiEvent
+{
+    public static final int NOTE_OFF = 0x80;
+    public static final int NOTE_ON = 0x90;
+    public static final int POLY_PRESSURE = 0xA0;
+    public static final int CONTROL_CHANGE = 0xB0;
+    public static final int CHANNEL_PRESSURE = 0xD0;
+    public static final int TIMING_CLOCK = 0xF8;
+
+    private static final int CABLE_SHIFT = 28;
+
+    // Packs a message of the given length; unused data bytes should be zero.
+    public static int pack(int status, int data1, int data2, int length)
+    {
+        return (status & 0xFF) | (data1 & 0xFF) << 8 | (data2 & 0xFF) << 16 | (length & 0x3) << 24;
+    }
+
+    // Packs the message contained in buf[offset..offset+length).
+    public static int pack(byte[] buf, int offset, int length)
+    {
+        int status = Util.byteToUnsignedInt(buf[offset]);
+        int data1 = length > 1 ? Util.byteToUnsignedInt(buf[offset + 1]) : 0;
+        int data2 = length > 2 ? Util.byteToUnsignedInt(buf[offset + 2]) : 0;
+        return pack(status, data1, data2, length);
+    }
+
+    public static int status(int message)
+    {
+        return message & 0xFF;
+    }
+
+    // The status byte with the channel nibble masked out, e.g. 0x90 for any Note On.
+    public static int command(int message)
+    {
+        return message & 0xF0;
+    }
+
+    public static int channel(int message)
+    {
+        return message & 0x0F;
+    }
+
+    public static int data1(int message)
+    {
+        return (message >>> 8) & 0xFF;
+    }
+
+    public static int data2(int message)
+    {
+        return (message >>> 16) & 0xFF;
+    }
+
+    public static int length(int message)
+    {
+        return (message >>> 24) & 0x3;
+    }
+
+    public static int cable(int message)
+    {
+        return message >>> CABLE_SHIFT;
+    }
+
+    // Returns the message tagged with the given cable number (0..15).
+    public static int withCable(int message, int cable)
+    {
+        return (message & ~(0xF << CABLE_SHIFT)) | (cable & 0xF) << CABLE_SHIFT;
+    }
+
+    // Combines a message with a timestamp offset into a single long, as stored by MidiEventBatch.
+    static long withTimeOffset(int message, long offset)
+    {
+        return (offset << 32) | (message & 0xFFFFFFFFL);
+    }
+
+    static int message(long event)
+    {
+        return (int) event;
+    }
+
+    static long timeOffset(long event)
+    {
+        return event >>> 32;
+    }
+
+    public static String toString(int message, long timestamp)
+    {
+        StringBuilder s = new StringBuilder();
+        for (int j = 0; j < length(message); ++j) {
+            s.append(String.format("%X", (message >>> (8 * j)) & 0xFF)).append(" ");
+        }
+        s.append(" ").append(Util.formatTime(timestamp));
+        return s.toString();
+    }
+}
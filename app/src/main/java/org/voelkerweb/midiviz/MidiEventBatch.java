@@ -0,0 +1,80 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * A growable batch of MIDI events in the packed representation described in MidiEvent. Each
+ * event takes 8 bytes of contiguous memory, so a minute of busy playing fits in a few kilobytes.
+ * <p/>
+ * Batches are meant to be reused: the owner calls clear() and hands the batch to a producer,
+ * which appends events in timestamp order.
+ */
+public class MidiEventBatch
+{
+    // Largest timestamp offset we can store in the upper 32 bits of an event, in microseconds.
+    private static final long MAX_TIME_OFFSET = 0xFFFFFFFFL;
+    private static final long NANOS_PER_OFFSET_UNIT = 1000;
+
+    private long[] events;
+    private int size = 0;
+    private long baseTime = 0;  // nanoseconds, see Clock
+
+    public MidiEventBatch(int initialCapacity)
+    {
+        events = new long[Math.max(initialCapacity, 1)];
+    }
+
+    public void clear()
+    {
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    // Appends a packed message with the given timestamp (in nanoseconds, see Clock). The first
+    // event of a batch determines its base time; later events must not be older than that.
+    // Timestamps of later events are stored with microsecond resolution.
+    public void add(int message, long timestamp)
+    {
+        if (size == 0) {
+            baseTime = timestamp;
+        }
+        if (size == events.length) {
+            long[] grown = new long[2 * events.length];
+            System.arraycopy(events, 0, grown, 0, size);
+            events = grown;
+        }
+        long offset = Math.min(Math.max(timestamp - baseTime, 0) / NANOS_PER_OFFSET_UNIT,
+                               MAX_TIME_OFFSET);
+        events[size++] = MidiEvent.withTimeOffset(message, offset);
+    }
+
+    // Returns the packed message (see MidiEvent) of the i-th event.
+    public int getMessage(int i)
+    {
+        return MidiEvent.message(events[i]);
+    }
+
+    public long getTimestamp(int i)
+    {
+        return baseTime + MidiEvent.timeOffset(events[i]) * NANOS_PER_OFFSET_UNIT;
+    }
+
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        s.append("[");
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) s.append(", ");
+            s.append(MidiEvent.toString(getMessage(i), getTimestamp(i)));
+        }
+        s.append("]");
+        return s.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package org.voelkerweb.midiviz;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Exports a recorded session from a SessionJournal as a Standard MIDI File.
+ * <p/>
+ * Ticks are counted from the start of the first measure (see NoteTracker.getOriginTime()) at the
+ * tempo and meter of the session, with one beat per quarter note. This way the bars in a
+ * sequencer line up with the measures that were shown while playing. Events are streamed from the
+ * journal to an SmfWriter one by one, so memory use doesn't depend on the session length.
+ */
+public class MidiFileExporter
+{
+    public static final int TICKS_PER_QUARTER = 480;
+
+    private static final long NANOS_PER_MINUTE = 60 * 1000 * Clock.NANOS_PER_MILLI;
+
+    private final long originTime;
+    private final int beatsPerMinute;
+    private final int beatsPerMeasure;
+
+    public MidiFileExporter(long originTime, int beatsPerMinute, int beatsPerMeasure)
+    {
+        this.originTime = originTime;
+        this.beatsPerMinute = beatsPerMinute;
+        this.beatsPerMeasure = beatsPerMeasure;
+    }
+
+    /**
+     * Returns the last bar line at or before 'time' on the grid of measures starting at 'origin',
+     * so an export can skip the measures before the first recorded event, e.g. if the grid was
+     * started by an earlier replay.
+     */
+    public static long barLineBefore(long origin, long time, int beatsPerMinute,
+                                     int beatsPerMeasure)
+    {
+        long measureNanos = beatsPerMeasure * NANOS_PER_MINUTE / beatsPerMinute;
+        if (time <= origin || measureNanos <= 0) {
+            return origin;
+        }
+        return origin + (time - origin) / measureNanos * measureNanos;
+    }
+
+    /**
+     * Writes all channel messages in the journal to the (empty) channel, in the given format (see
+     * SmfWriter). Format 1 puts tempo and meter in a track of their own. Returns the number of
+     * messages written.
+     */
+    public long export(SessionJournal journal, int format, FileChannel channel) throws IOException
+    {
+        return export(journal, journal.getRecordCount(), format, channel);
+    }
+
+    // Same as above, but only exports the first 'numRecords' records of the journal.
+    public long export(SessionJournal journal, long numRecords, int format, FileChannel channel)
+            throws IOException
+    {
+        SmfWriter writer = new SmfWriter(channel, format, TICKS_PER_QUARTER);
+        writer.beginTrack();
+        writer.writeTrackName(0, "MidiViz session");
+        writer.writeTimeSignature(0, beatsPerMeasure, 2);
+        writer.writeTempo(0, (int) (60L * 1000 * 1000 / beatsPerMinute));
+        if (format == SmfWriter.FORMAT_MULTI_TRACK) {
+            writer.endTrack(0);
+            writer.beginTrack();
+            writer.writeTrackName(0, "Keyboard");
+        }
+
+        long count = 0;
+        long lastTick = 0;
+        for (long i = 0; i < numRecords; ++i) {
+            int message = journal.getMessage(i);
+            int status = MidiEvent.status(message);
+            if (status < 0x80 || status >= 0xF0) {
+                continue;  // Only channel messages have a plain SMF representation.
+            }
+            // Events are journaled in merge order, so ticks only decrease for stragglers.
+            long tick = Math.max(ticksFor(journal.getTimestamp(i)), lastTick);
+            writer.writeMessage(tick - lastTick, message);
+            lastTick = tick;
+            ++count;
+        }
+
+        // End the track at the next bar line, so the last measure is complete.
+        long ticksPerMeasure = (long) beatsPerMeasure * TICKS_PER_QUARTER;
+        long end = (lastTick + ticksPerMeasure - 1) / ticksPerMeasure * ticksPerMeasure;
+        writer.endTrack(end - lastTick);
+        writer.close();
+        return count;
+    }
+
+    // Converts a Clock timestamp to ticks since the origin. Events before it go to tick 0.
+    long ticksFor(long timestamp)
+    {
+        long elapsed = Math.max(timestamp - originTime, 0);
+        // Two hours are ~7e12 ns, times bpm and ticks per quarter still fits a long easily.
+        return (elapsed * beatsPerMinute * TICKS_PER_QUARTER + NANOS_PER_MINUTE / 2) /
+                NANOS_PER_MINUTE;
+    }
+}
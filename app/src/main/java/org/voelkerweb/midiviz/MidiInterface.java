@@ -1,6 +1,6 @@
 package org.voelkerweb.midiviz;
 
-import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * An abstract interface for UsbMidiHelper and FakeMidiGenerator.
@@ -19,6 +19,13 @@ public interface MidiInterface
     // Disables reception of MIDI messages.
     public void stopReceiving();
 
-    // Retrieves all new MIDI messages.
-    public List<MidiMessage> getMessages();
+    // Appends all new MIDI events to the given batch, in timestamp order. This is the polling
+    // interface; see setListener() for the push interface.
+    public void getEvents(MidiEventBatch batch);
+
+    // Registers a listener that receives new events as soon as they arrive, or unregisters it if
+    // listener is null. Events are delivered on the given executor, or directly on a receiving
+    // thread if executor is null; deliveries never overlap either way. Polling via getEvents()
+    // must then only happen on the executor's thread.
+    public void setListener(MidiListener listener, Executor executor);
 }
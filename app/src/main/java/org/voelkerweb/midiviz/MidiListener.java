@@ -0,0 +1,11 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * Receives MIDI events pushed by a MidiInterface as soon as they arrive.
+ */
+public interface MidiListener
+{
+    // Called with all events received since the last call, in timestamp order. The batch is reused
+    // for the next call, so listeners must not hold on to it.
+    public void onMidiEvents(MidiEventBatch events);
+}
@@ -0,0 +1,110 @@
+package org.voelkerweb.midiviz;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A preallocated, lock-free ring buffer that hands MIDI messages from exactly one producer thread
+ * (the USB waiter thread) to exactly one consumer thread (the UI thread).
+ * <p/>
+ * Each slot holds a packed message (see MidiEvent) plus a timestamp in primitive arrays, so
+ * neither offering nor draining allocates anything. If the consumer falls behind and the ring
+ * fills up, new messages are dropped (and counted) rather than blocking the producer.
+ */
+public class MidiRingBuffer
+{
+    private final int capacity;
+    private final int mask;
+    private final int[] slots;  // packed messages, see MidiEvent
+    private final long[] timestamps;
+
+    // head is only written by the consumer, tail only by the producer. We use lazySet for the
+    // writes, which is all the ordering a single-producer/single-consumer queue needs.
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+
+    // Statistics, written by the producer only.
+    private volatile long droppedCount = 0;
+    private volatile int highWaterMark = 0;
+
+    // Creates a ring buffer holding at least the given number of messages. The capacity is
+    // rounded up to the next power of two.
+    public MidiRingBuffer(int minCapacity)
+    {
+        int c = 1;
+        while (c < minCapacity) {
+            c <<= 1;
+        }
+        capacity = c;
+        mask = c - 1;
+        slots = new int[c];
+        timestamps = new long[c];
+    }
+
+    /**
+     * Producer side: stores a packed message (see MidiEvent) in the next free slot. Returns false
+     * if the ring is full and the message was dropped.
+     */
+    public boolean offer(int message, long timestamp)
+    {
+        long t = tail.get();
+        int used = (int) (t - head.get());
+        if (used >= capacity) {
+            droppedCount = droppedCount + 1;
+            return false;
+        }
+        int idx = (int) t & mask;
+        slots[idx] = message;
+        timestamps[idx] = timestamp;
+        tail.lazySet(t + 1);  // publishes the slot contents to the consumer
+        if (used + 1 > highWaterMark) {
+            highWaterMark = used + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side: moves all waiting messages into the batch, in the order they were offered.
+     * Returns the number of messages moved.
+     */
+    public int drainTo(MidiEventBatch batch)
+    {
+        long h = head.get();
+        long t = tail.get();
+        for (long n = h; n < t; ++n) {
+            int idx = (int) n & mask;
+            batch.add(slots[idx], timestamps[idx]);
+        }
+        head.lazySet(t);  // releases the slots to the producer
+        return (int) (t - h);
+    }
+
+    // Number of messages currently waiting to be drained. Exact when called from either the
+    // producer or the consumer thread, approximate otherwise.
+    public int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    // Returns how full the ring is, between 0 (empty) and 1 (full).
+    public float fillLevel()
+    {
+        return Util.safeDiv(size(), capacity);
+    }
+
+    // The largest number of messages that were ever waiting in the ring at the same time.
+    public int highWaterMark()
+    {
+        return highWaterMark;
+    }
+
+    // Number of messages that were dropped because the ring was full.
+    public long droppedCount()
+    {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,127 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * Combines the events of several receive rings (one per USB endpoint) into one stream, ordered by
+ * timestamp.
+ * <p/>
+ * Every ring delivers its events in order already, so on each drain we do a k-way merge: a small
+ * binary heap holds one entry per ring, keyed by the timestamp of that ring's oldest undelivered
+ * event. Each event costs O(log k), which for the handful of devices we expect is effectively
+ * linear in the number of events. Nothing is allocated after the sources have been added.
+ * <p/>
+ * Events are only ordered within a drain. A reader thread may stamp an event just before a drain
+ * and publish it just after, in which case it arrives with the next drain; NoteTracker copes
+ * with such stragglers.
+ * <p/>
+ * All methods must be called from the consumer thread.
+ */
+public class MidiStreamMerger
+{
+    private MidiRingBuffer[] sources = new MidiRingBuffer[0];
+    private MidiEventBatch[] staged = new MidiEventBatch[0];  // drained, not yet merged events
+    private int[] positions = new int[0];  // next event to merge, per source
+    private int[] heap = new int[0];  // source indices, ordered by their next event's timestamp
+    private int heapSize = 0;
+
+    // Adds a ring to merge. This allocates, so it should only be done while connecting devices.
+    public void addSource(MidiRingBuffer ring)
+    {
+        int n = sources.length;
+        MidiRingBuffer[] grownSources = new MidiRingBuffer[n + 1];
+        MidiEventBatch[] grownStaged = new MidiEventBatch[n + 1];
+        System.arraycopy(sources, 0, grownSources, 0, n);
+        System.arraycopy(staged, 0, grownStaged, 0, n);
+        grownSources[n] = ring;
+        grownStaged[n] = new MidiEventBatch(ring.capacity());
+        sources = grownSources;
+        staged = grownStaged;
+        positions = new int[n + 1];
+        heap = new int[n + 1];
+    }
+
+    public int numSources()
+    {
+        return sources.length;
+    }
+
+    /**
+     * Moves all waiting events of all sources into the batch, in timestamp order. Events with
+     * equal timestamps are ordered by source. Returns the number of events moved.
+     */
+    public int drainTo(MidiEventBatch batch)
+    {
+        if (sources.length == 1) {
+            return sources[0].drainTo(batch);  // Nothing to merge.
+        }
+
+        heapSize = 0;
+        for (int s = 0; s < sources.length; ++s) {
+            staged[s].clear();
+            positions[s] = 0;
+            if (sources[s].drainTo(staged[s]) > 0) {
+                heap[heapSize++] = s;
+                siftUp(heapSize - 1);
+            }
+        }
+
+        int count = 0;
+        while (heapSize > 0) {
+            int s = heap[0];
+            int i = positions[s]++;
+            batch.add(staged[s].getMessage(i), staged[s].getTimestamp(i));
+            ++count;
+            if (positions[s] == staged[s].size()) {
+                heap[0] = heap[--heapSize];  // This source is exhausted.
+            }
+            siftDown(0);
+        }
+        return count;
+    }
+
+    // Returns true if source a's next event should be merged before source b's.
+    private boolean before(int a, int b)
+    {
+        long ta = staged[a].getTimestamp(positions[a]);
+        long tb = staged[b].getTimestamp(positions[b]);
+        return ta < tb || (ta == tb && a < b);
+    }
+
+    private void siftUp(int i)
+    {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!before(heap[i], heap[parent])) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i)
+    {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && before(heap[left], heap[smallest])) {
+                smallest = left;
+            }
+            if (right < heapSize && before(heap[right], heap[smallest])) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+}
@@ -4,7 +4,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
-import android.graphics.Path;
+import android.os.Build;
 
 /**
  * Draws a musical measure and the contained notes on a canvas.
@@ -14,23 +14,45 @@ public class NotePainter
     private static int ALPHA = 50;  // [0..255]
     private static float SATURATION = 1.0f;  // [0..1]
     private static float VALUE = 1.0f;  // [0..1]
-    private float[] hsv = {0.0f, SATURATION, VALUE};  // mutable
-    private static float MARKER_SIZE = 10.0f;
+    private static final int NUM_PITCH_CLASSES = 12;
+    private static final int FLOATS_PER_RECT = 12;  // two triangles of three (x, y) vertices
+    private static final int FLOATS_PER_LINE = 4;
+    static final float MARKER_SIZE = 10.0f;  // time marker radius; may extend beyond the area
+    static final float TIMING_OVERLAY_HEIGHT = 100.0f;
+    private static final float TIMING_TEXT_SIZE = 20.0f;
 
-    Parameters mParameters;
+    Parameters mParameters;  // the snapshot of the last setParameters(), for the grid layout
 
     // TODO: a lot of this stuff can be static.
     private Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // for thick lines
-    private Paint beatLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // for beat lines
-    private Paint subBeatLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // for sub-beat lines
+    private Paint beatLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // for beat and sub-beat lines
     private Paint levelLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // for level lines
 
-    private Paint areaPaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // for rectangles
-    private Path path = new Path();  // TODO: needed?
+    // Fill paints for notes, one per pitch class.
+    private Paint[] notePaints = new Paint[NUM_PITCH_CLASSES];
+
+    // Note rectangles (as triangles) grouped by pitch class, and note outlines, collected by
+    // drawMeasure and then submitted with one draw call per paint. Grown as needed.
+    private float[][] noteVertices = new float[NUM_PITCH_CLASSES][16 * FLOATS_PER_RECT];
+    private int[] numNoteVertexFloats = new int[NUM_PITCH_CLASSES];
+    private float[] outlines = new float[48 * FLOATS_PER_LINE];
+
+    // Timing overlay, see drawTimingOverlay. The text is only formatted when the statistics have
+    // changed.
+    private Paint timingTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private Paint timingBarPaint = new Paint();
+    private float[] timingBars = new float[TimingAnalyzer.NUM_BINS * FLOATS_PER_LINE];
+    private int timingVersion = -1;
+    private String timingText;
+    private int maxBinCount;
+
+    // Recently used grids, replaced round-robin. A handful covers all layouts on screen.
+    private Grid[] grids = new Grid[4];
+    private int nextGrid = 0;
 
     public NotePainter(Parameters parameters)
     {
-        mParameters = parameters;
+        setParameters(parameters);
 
         linePaint.setColor(Color.BLACK);
         linePaint.setStyle(Paint.Style.STROKE);
@@ -39,13 +61,26 @@ public class NotePainter
         beatLinePaint.setStyle(Paint.Style.STROKE);
         beatLinePaint.setPathEffect(new DashPathEffect(new float[]{5.0f, 5.0f}, 0.0f));
 
-        subBeatLinePaint.setColor(Color.LTGRAY);
-        subBeatLinePaint.setStyle(Paint.Style.STROKE);
-        subBeatLinePaint.setPathEffect(new DashPathEffect(new float[]{5.0f, 5.0f}, 0.0f));
-
         levelLinePaint.setColor(Color.GRAY);
 
-        areaPaint.setStyle(Paint.Style.FILL);
+        timingTextPaint.setColor(Color.DKGRAY);
+        timingTextPaint.setTextSize(TIMING_TEXT_SIZE);
+        timingBarPaint.setColor(Color.GRAY);
+        timingBarPaint.setStyle(Paint.Style.STROKE);
+
+        float[] hsv = {0.0f, SATURATION, VALUE};
+        for (int pc = 0; pc < NUM_PITCH_CLASSES; ++pc) {
+            hsv[0] = getHue(pc);
+            notePaints[pc] = new Paint(Paint.ANTI_ALIAS_FLAG);
+            notePaints[pc].setStyle(Paint.Style.FILL);
+            notePaints[pc].setColor(Color.HSVToColor(ALPHA, hsv));
+        }
+    }
+
+    // Picks up a new Parameters snapshot, e.g. after the sub-beat setting changed.
+    public void setParameters(Parameters parameters)
+    {
+        mParameters = parameters;
     }
 
     // Computes the x coordinate for the given beat value.
@@ -62,46 +97,92 @@ public class NotePainter
 
     public void drawEmptyMeasure(int numBeats, int numSubBeats, Canvas canvas, Area area)
     {
-        // Draw horizontal lines at volume levels.
-        for (float level = 0.0f; level <= 1.0; level += mParameters.levelMarkerInterval()) {
-            float y = getY(level, area);
-            canvas.drawLine(area.x0, y, area.x1, y, levelLinePaint);
-        }
-
-        // Draw vertical lines at beginning and end of measure.
-        canvas.drawLine(area.x0, area.y0, area.x0, area.y1, linePaint);
-        canvas.drawLine(area.x1, area.y0, area.x1, area.y1, linePaint);
+        // The grid only depends on the layout, so we draw precomputed lines with one call per
+        // paint, relative to the area's top-left corner.
+        Grid grid = getGrid(numBeats, numSubBeats, mParameters.levelMarkerInterval(),
+                            area.x1 - area.x0, area.y1 - area.y0);
+        canvas.save();
+        canvas.translate(area.x0, area.y0);
+        canvas.drawLines(grid.levelLines, levelLinePaint);
+        canvas.drawLines(grid.barLines, linePaint);
+        // There is a bug in Android that prevents Canvas.drawLine(s) from drawing dashed lines, see
+        // https://code.google.com/p/android/issues/detail?id=29944. Canvas.drawPath would work,
+        // but seems to be wildly more expensive. So let's just stick with solid lines.
+        canvas.drawLines(grid.beatLines, beatLinePaint);
+        canvas.restore();
+    }
 
-        // Draw beat and sub-beat markers. Skip first and last because they coincide with measure
-        // boundaries.
-        for (int b = 0; b < numBeats; ++b) {
-            if (b > 0) {
-                float x = getX(b, numBeats, area);
-                myDrawLine(canvas, x, area.y0, x, area.y1, beatLinePaint);
-            }
-            for (int sb = 1; sb < numSubBeats; ++sb) {
-                float x = getX(b + ((float) sb) / ((float) numSubBeats), numBeats, area);
-                myDrawLine(canvas, x, (area.y0 + area.y1) / 2, x, area.y1, subBeatLinePaint);
+    // Returns the grid for the given layout, computing it if it isn't cached yet.
+    private Grid getGrid(int numBeats, int numSubBeats, float levelInterval, float width,
+                         float height)
+    {
+        for (Grid grid : grids) {
+            if (grid != null && grid.matches(numBeats, numSubBeats, levelInterval, width, height)) {
+                return grid;
             }
         }
+        Grid grid = new Grid(numBeats, numSubBeats, levelInterval, width, height);
+        grids[nextGrid] = grid;
+        nextGrid = (nextGrid + 1) % grids.length;
+        return grid;
     }
 
     /**
-     * There is a bug in Android that prevents Canvas.drawLine from drawing dashed lines. We need to
-     * use Canvas.drawPath as a workaround.
-     * See https://code.google.com/p/android/issues/detail?id=29944
-     * <p/>
-     * However, drawPath seems to be wildly more expensive. So let's just stick with a solid line.
+     * The lines making up an empty measure, as point arrays for Canvas.drawLines. Coordinates are
+     * relative to the top-left corner of the measure's area.
      */
-    private void myDrawLine(Canvas canvas, float x0, float y0, float x1, float y1, Paint paint)
+    private static class Grid
     {
-        /*
-        path.moveTo(x0, y0);
-        path.lineTo(x1, y1);
-        canvas.drawPath(path, paint);
-        path.reset();
-        */
-        canvas.drawLine(x0, y0, x1, y1, paint);
+        final int numBeats, numSubBeats;
+        final float levelInterval, width, height;
+
+        float[] levelLines;  // horizontal lines at volume levels
+        float[] barLines;  // vertical lines at beginning and end of measure
+        float[] beatLines;  // beat and sub-beat markers
+
+        Grid(int beats, int subBeats, float interval, float w, float h)
+        {
+            numBeats = beats;
+            numSubBeats = subBeats;
+            levelInterval = interval;
+            width = w;
+            height = h;
+
+            int numLevels = 0;
+            for (float level = 0.0f; level <= 1.0; level += levelInterval) {
+                ++numLevels;
+            }
+            levelLines = new float[4 * numLevels];
+            int n = 0;
+            for (float level = 0.0f; level <= 1.0; level += levelInterval) {
+                float y = height - height * level;
+                n = addLine(levelLines, n, 0.0f, y, width, y);
+            }
+
+            barLines = new float[8];
+            addLine(barLines, 0, 0.0f, 0.0f, 0.0f, height);
+            addLine(barLines, 4, width, 0.0f, width, height);
+
+            // Skip first and last beat because they coincide with measure boundaries.
+            beatLines = new float[4 * ((numBeats - 1) + numBeats * Math.max(numSubBeats - 1, 0))];
+            n = 0;
+            for (int b = 0; b < numBeats; ++b) {
+                if (b > 0) {
+                    float x = width * b / numBeats;
+                    n = addLine(beatLines, n, x, 0.0f, x, height);
+                }
+                for (int sb = 1; sb < numSubBeats; ++sb) {
+                    float x = width * (b + ((float) sb) / ((float) numSubBeats)) / numBeats;
+                    n = addLine(beatLines, n, x, height / 2, x, height);
+                }
+            }
+        }
+
+        boolean matches(int beats, int subBeats, float interval, float w, float h)
+        {
+            return numBeats == beats && numSubBeats == subBeats && levelInterval == interval &&
+                    width == w && height == h;
+        }
     }
 
     // Draws the measure, plus a time indicator at the position corresponding to currentTime.
@@ -112,35 +193,69 @@ public class NotePainter
         float currentBeat = measure.getBeatForTime(currentTime);
         float currentX = getX(currentBeat, measure.getNumBeats(), area);
 
-        // Draw notes.
+        // Draw notes. Rather than issuing several draw calls per note, we collect rectangles by
+        // pitch class and outlines in arrays, and submit each group with a single call.
         // TODO: we currently draw vertical lines even for notes that extend the measure boundaries.
         // If this leads to graphics glitches, we have to introduce additional flags for these.
-        boolean hasHeldNotes = false;
         float y0 = area.y1;  // convenient alias since y1 is 'bottom'
-        for (Measure.Note note : measure.getNotes()) {
-            float x0 = getX(note.startBeat, measure.getNumBeats(), area);
-            float x1 = note.held ? currentX : getX(note.endBeat, measure.getNumBeats(), area);
-            float y1 = getY(note.level, area);
-
-            hsv[0] = getHue(note.key);
-            areaPaint.setColor(Color.HSVToColor(ALPHA, hsv));
-            // It seems that rectangles *have* to be drawn up-left to down-right!
-            canvas.drawRect(x0, y1, x1, y0, areaPaint);
-
-            // Draw a little line at the beginning of the note so we can more easily see at exactly
-            // what time the note was played.
-            // TODO: control this via settings.
-            float blipSize = 0.05f * (area.y0 - area.y1);
-            canvas.drawLine(x0, y0 - blipSize, x0, y1, linePaint);
-            canvas.drawLine(x0, y1, x1, y1, linePaint);
-
-            // Draw time marker for held notes.
-            if (note.held) {
-                canvas.drawCircle(currentX, y1, MARKER_SIZE, areaPaint);
+        int numBeats = measure.getNumBeats();
+        int numNotes = measure.getNoteCount();
+        ensureCapacity(numNotes);
+        int numOutlineFloats = 0;
+        for (int pc = 0; pc < NUM_PITCH_CLASSES; ++pc) {
+            numNoteVertexFloats[pc] = 0;
+        }
+        // Draw a little line at the beginning of the note so we can more easily see at exactly
+        // what time the note was played.
+        // TODO: control this via settings.
+        float blipSize = 0.05f * (area.y0 - area.y1);
+        for (int i = 0; i < numNotes; ++i) {
+            boolean held = measure.isNoteHeld(i);
+            float x0 = getX(measure.getNoteStartBeat(i), numBeats, area);
+            float x1 = held ? currentX : getX(measure.getNoteEndBeat(i), numBeats, area);
+            float y1 = getY(measure.getNoteLevel(i), area);
+
+            int pc = measure.getNoteKey(i) % NUM_PITCH_CLASSES;
+            numNoteVertexFloats[pc] = addRect(noteVertices[pc], numNoteVertexFloats[pc],
+                                              x0, y1, x1, y0);
+
+            numOutlineFloats = addLine(outlines, numOutlineFloats, x0, y0 - blipSize, x0, y1);
+            numOutlineFloats = addLine(outlines, numOutlineFloats, x0, y1, x1, y1);
+            if (!held) {
+                numOutlineFloats = addLine(outlines, numOutlineFloats, x1, y0, x1, y1);
+            }
+        }
+
+        // drawVertices isn't supported by hardware accelerated canvases before Android Q. There,
+        // we fall back to individual rectangles, which still benefit from the precomputed paints.
+        boolean useVertices = !canvas.isHardwareAccelerated() ||
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+        for (int pc = 0; pc < NUM_PITCH_CLASSES; ++pc) {
+            float[] vertices = noteVertices[pc];
+            if (numNoteVertexFloats[pc] == 0) {
+                continue;
+            } else if (useVertices) {
+                canvas.drawVertices(Canvas.VertexMode.TRIANGLES, numNoteVertexFloats[pc], vertices,
+                                    0, null, 0, null, 0, null, 0, 0, notePaints[pc]);
+            } else {
+                for (int n = 0; n < numNoteVertexFloats[pc]; n += FLOATS_PER_RECT) {
+                    // Vertices 0 and 2 are the up-left and down-right corners, see addRect.
+                    canvas.drawRect(vertices[n], vertices[n + 1], vertices[n + 4],
+                                    vertices[n + 5], notePaints[pc]);
+                }
+            }
+        }
+        canvas.drawLines(outlines, 0, numOutlineFloats, linePaint);
+
+        // Draw time markers for held notes. There are only ever a handful of these.
+        boolean hasHeldNotes = false;
+        for (int i = 0; i < numNotes; ++i) {
+            if (measure.isNoteHeld(i)) {
+                float y1 = getY(measure.getNoteLevel(i), area);
+                Paint paint = notePaints[measure.getNoteKey(i) % NUM_PITCH_CLASSES];
+                canvas.drawCircle(currentX, y1, MARKER_SIZE, paint);
                 canvas.drawCircle(currentX, y1, MARKER_SIZE, linePaint);
                 hasHeldNotes = true;
-            } else {
-                canvas.drawLine(x1, y0, x1, y1, linePaint);
             }
         }
 
@@ -156,11 +271,87 @@ public class NotePainter
     }
 
     // Returns the hue in which to paint a given note.
-    private float getHue(int key)
+    private static float getHue(int key)
     {
         return (key % 12) * 360 / 12;
     }
 
+    // Makes sure the vertex and outline arrays can hold the given number of notes, even if they
+    // all have the same pitch class.
+    private void ensureCapacity(int numNotes)
+    {
+        if (outlines.length < 3 * FLOATS_PER_LINE * numNotes) {
+            int capacity = Math.max(2 * outlines.length, 3 * FLOATS_PER_LINE * numNotes);
+            outlines = new float[capacity];
+        }
+        for (int pc = 0; pc < NUM_PITCH_CLASSES; ++pc) {
+            if (noteVertices[pc].length < FLOATS_PER_RECT * numNotes) {
+                int capacity = Math.max(2 * noteVertices[pc].length, FLOATS_PER_RECT * numNotes);
+                noteVertices[pc] = new float[capacity];
+            }
+        }
+    }
+
+    // Appends the rectangle with up-left corner (x0, y0) and down-right corner (x1, y1) as two
+    // triangles: (x0, y0), (x1, y0), (x1, y1) and (x0, y0), (x1, y1), (x0, y1).
+    private static int addRect(float[] v, int n, float x0, float y0, float x1, float y1)
+    {
+        v[n] = x0;       v[n + 1] = y0;
+        v[n + 2] = x1;   v[n + 3] = y0;
+        v[n + 4] = x1;   v[n + 5] = y1;
+        v[n + 6] = x0;   v[n + 7] = y0;
+        v[n + 8] = x1;   v[n + 9] = y1;
+        v[n + 10] = x0;  v[n + 11] = y1;
+        return n + FLOATS_PER_RECT;
+    }
+
+    private static int addLine(float[] pts, int n, float x0, float y0, float x1, float y1)
+    {
+        pts[n] = x0;
+        pts[n + 1] = y0;
+        pts[n + 2] = x1;
+        pts[n + 3] = y1;
+        return n + FLOATS_PER_LINE;
+    }
+
+    /**
+     * Draws the statistics of the timing analyzer into the area: a line of text, and below it a
+     * histogram of the onset deviations from the grid, early on the left and late on the right,
+     * with a line at zero.
+     */
+    public void drawTimingOverlay(TimingAnalyzer timing, Canvas canvas, Area area)
+    {
+        if (timing.getVersion() != timingVersion) {
+            timingVersion = timing.getVersion();
+            timingText = String.format(
+                    "Timing: n=%d mean=%+.1fms sd=%.1fms p10=%+.0fms p50=%+.0fms p90=%+.0fms",
+                    timing.getCount(), timing.getMeanMillis(), timing.getStdDevMillis(),
+                    timing.getPercentileMillis(0.1), timing.getPercentileMillis(0.5),
+                    timing.getPercentileMillis(0.9));
+            maxBinCount = 0;
+            for (int i = 0; i < TimingAnalyzer.NUM_BINS; ++i) {
+                maxBinCount = Math.max(maxBinCount, timing.getBinCount(i));
+            }
+        }
+        float top = area.y0 + 1.5f * TIMING_TEXT_SIZE;
+        canvas.drawText(timingText, area.x0, area.y0 + TIMING_TEXT_SIZE, timingTextPaint);
+
+        float binWidth = (area.x1 - area.x0) / TimingAnalyzer.NUM_BINS;
+        int numBarFloats = 0;
+        for (int i = 0; i < TimingAnalyzer.NUM_BINS && maxBinCount > 0; ++i) {
+            int binCount = timing.getBinCount(i);
+            if (binCount > 0) {
+                float x = area.x0 + (i + 0.5f) * binWidth;
+                float height = (area.y1 - top) * binCount / maxBinCount;
+                numBarFloats = addLine(timingBars, numBarFloats, x, area.y1, x, area.y1 - height);
+            }
+        }
+        timingBarPaint.setStrokeWidth(0.8f * binWidth);
+        canvas.drawLines(timingBars, 0, numBarFloats, timingBarPaint);
+        float zeroX = area.x0 + (TimingAnalyzer.RANGE_BINS + 0.5f) * binWidth;
+        canvas.drawLine(zeroX, top, zeroX, area.y1, linePaint);
+    }
+
     /**
      * Represents a screen area.
      */
@@ -1,103 +1,202 @@
 package org.voelkerweb.midiviz;
 
-import android.util.Log;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.ListIterator;
-
 /**
  * Processes Midi messages and keeps track of notes and measures.
+ * <p/>
+ * Settings are taken from a TrackerSettings.Source whenever a measure starts, and stay fixed for
+ * that measure, so a change in the settings never alters the measure being played.
+ * <p/>
+ * The live measures are kept in a MeasureRing with room for one more than numMeasuresToKeep(), so
+ * measures are recycled as they expire and playing doesn't allocate anything per measure.
  */
 public class NoteTracker
 {
     private static final String TAG = "NoteTracker";
-    private ArrayList<Measure> measures = new ArrayList<Measure>();
-    private Metronome metronome;
-    private Parameters mParameters;
+    private MeasureRing measures = new MeasureRing(2);
+    private long[] dingTimes = new long[0];  // reused for every measure, see sendDingTimes()
+    private DingListener metronome;
+    private LatencyTracker latencyTracker;
+    private MeasureHistory history;
+    private TimingAnalyzer timingAnalyzer;
+    private TrackerSettings.Source settingsSource;
+    private TrackerSettings mParameters;  // the settings of the latest measure
+    private float[] velocityLevels;  // see VelocityCurve, for mParameters
+    private long originTime = -1;  // start time of the very first measure, see getOriginTime()
+
+    // Receives the metronome ding times of each new measure. The array is reused, so it must not
+    // be kept.
+    public interface DingListener
+    {
+        void scheduleMeasure(long[] dingTimes);
+    }
 
-    public NoteTracker(Parameters parameters) {
-        mParameters = parameters;
+    public NoteTracker(TrackerSettings.Source source) {
+        settingsSource = source;
+        mParameters = source.current();
+        velocityLevels = VelocityCurve.levelsFor(mParameters);
+    }
+
+    // Creates a tracker with fixed settings.
+    public NoteTracker(final TrackerSettings parameters) {
+        this(new TrackerSettings.Source() {
+            public TrackerSettings current() {
+                return parameters;
+            }
+        });
     }
 
     // Register a handle to metronome so we can notify the metronome of ding times.
-    public void registerMetronome(Metronome metro) {
+    public void registerMetronome(DingListener metro) {
         metronome = metro;
     }
 
+    // Register a latency tracker to be notified when events have been applied.
+    public void registerLatencyTracker(LatencyTracker tracker) {
+        latencyTracker = tracker;
+    }
+
+    // Register a history that receives measures as they expire, instead of dropping them.
+    public void registerHistory(MeasureHistory measureHistory) {
+        history = measureHistory;
+    }
+
+    // Register an analyzer that receives the onset of every new note.
+    public void registerTimingAnalyzer(TimingAnalyzer analyzer) {
+        timingAnalyzer = analyzer;
+    }
+
     /**
-     * Iteratively adds notes from the iterator to the measure, as long as they fall within the
-     * measure's time interval. Any notes with a timestamp earlier than the measure's start time
-     * are dropped. If a note with a timestamp later than the measure's end time is encountered, the
-     * function returns with the iterator pointing to this note, so it can be processed in the next
-     * measure.
+     * Iteratively adds events from the batch to the measure, starting at index 'first', as long as
+     * they fall within the measure's time interval. Any events with a timestamp earlier than the
+     * measure's start time are dropped. If an event with a timestamp later than the measure's end
+     * time is encountered, the function returns the index of this event, so it can be processed
+     * in the next measure. Otherwise it returns events.size().
      */
-    private void updateMeasureFromMessages(Measure measure, ListIterator<MidiMessage> iter)
+    private int updateMeasureFromEvents(Measure measure, MidiEventBatch events, int first)
     {
-        while (iter.hasNext()) {
-            MidiMessage message = iter.next();
+        for (int i = first; i < events.size(); ++i) {
+            long timestamp = events.getTimestamp(i);
             // We drop any notes with timestamp < measure.getStartTime()
-            if (message.timestamp >= measure.getStartTime()) {
-                if (message.timestamp < measure.getEndTime()) {
+            if (timestamp >= measure.getStartTime()) {
+                if (timestamp < measure.getEndTime()) {
                     // add this note to the measure
-                    measure.updateFromMessage(message, mParameters);
+                    measure.updateFromMessage(events.getMessage(i), timestamp, velocityLevels,
+                                              timingAnalyzer);
                 } else {
                     // this note should go into the next measure, so we're done.
-                    iter.previous();
-                    return;
+                    return i;
                 }
             }
         }
+        return events.size();
+    }
+
+    private void dropExpiredMeasures(int numMeasuresToKeep)
+    {
+        while (measures.size() > numMeasuresToKeep) {
+            dropOldestMeasure();
+        }
     }
 
-    private void dropExpiredMeasures(ArrayList<Measure> measures)
+    // Hands the oldest measure to the history, if any. Its instance is recycled by the ring.
+    private void dropOldestMeasure()
     {
-        // Dropping from the front of an ArrayList is inefficient, but this should be insignificant
-        // since the number of elements in the list is small.
-        int numToDrop = measures.size() - mParameters.numMeasuresToKeep();
-        if (numToDrop > 0) {
-            measures.subList(0, numToDrop).clear();
+        Measure oldest = measures.removeOldest();
+        if (history != null) {
+            history.add(oldest);
         }
     }
 
-    public ArrayList<Measure> getMeasures()
+    // Adapts the ring to a changed numMeasuresToKeep() setting. Only allocates if it did change.
+    private void resizeMeasures(int numMeasuresToKeep)
     {
-        return measures;
+        int capacity = numMeasuresToKeep + 1;
+        if (measures.capacity() != capacity) {
+            dropExpiredMeasures(capacity - 1);
+            measures.resize(capacity);
+        }
+    }
+
+    // Picks up the current settings for a new measure. The velocity table is only looked up
+    // again if they have changed.
+    private void refreshSettings()
+    {
+        TrackerSettings current = settingsSource.current();
+        if (current != mParameters) {
+            mParameters = current;
+            velocityLevels = VelocityCurve.levelsFor(current);
+        }
+    }
+
+    // Number of live measures.
+    public int getMeasureCount()
+    {
+        return measures.size();
+    }
+
+    // Returns the i-th live measure, 0 being the oldest. Measures are recycled once they expire,
+    // so callers must not keep them across updates.
+    public Measure getMeasure(int i)
+    {
+        return measures.get(i);
+    }
+
+    // Returns the start time of the first measure ever created, which all later measures line up
+    // with (as long as the tempo doesn't change), or -1 if there is none yet.
+    public long getOriginTime()
+    {
+        return originTime;
+    }
+
+    // Returns true if any notes are currently held down.
+    public boolean hasHeldNotes()
+    {
+        return !measures.isEmpty() && measures.getLatest().hasHeldNotes();
     }
 
     /**
      * Adds notes to the current measure, creates a new measure when required, and drops expired
-     * measures. Then invalidates the view so it gets redrawn.
+     * measures. Then invalidates the view so it gets redrawn. 'time' is the current Clock time.
      * <p/>
      * Returns the number of new measures that were started in this update (if any.)
      */
-    public int update(List<MidiMessage> messages)
+    public int update(MidiEventBatch events, long time)
     {
         // TODO: we need some delay before 1st measure; and send ding time explicitly
-        long time = System.currentTimeMillis();
         int newMeasures = 0;
         if (measures.isEmpty()) {
-            measures.add(new Measure(time,
-                                     mParameters.measureDurationMillis(),
-                                     mParameters.beatsPerMeasure(),
-                                     true));
+            refreshSettings();
+            resizeMeasures(Math.max(mParameters.numMeasuresToKeep(), 1));
+            originTime = time;
+            measures.addNewest().reset(time,
+                                       mParameters.measureDurationNanos(),
+                                       mParameters.beatsPerMeasure(),
+                                       true);
             ++newMeasures;
         }
 
-        ListIterator<MidiMessage> messageIterator = messages.listIterator();
-
-        Measure latestMeasure = measures.get(measures.size() - 1);
-        updateMeasureFromMessages(latestMeasure, messageIterator);
+        Measure latestMeasure = measures.getLatest();
+        int next = updateMeasureFromEvents(latestMeasure, events, 0);
 
         while (latestMeasure.getEndTime() < time) {
-            measures.add(Measure.FromLastMeasure(latestMeasure,
-                                                 mParameters.measureDurationMillis(),
-                                                 mParameters.beatsPerMeasure(),
-                                                 true));
+            refreshSettings();
+            resizeMeasures(Math.max(mParameters.numMeasuresToKeep(), 1));
+            if (measures.isFull()) {
+                dropOldestMeasure();  // Never the latest one, the ring has room for two at least.
+            }
+            Measure newMeasure = measures.addNewest();
+            newMeasure.continueFrom(latestMeasure,
+                                    mParameters.measureDurationNanos(),
+                                    mParameters.beatsPerMeasure(),
+                                    true);
             ++newMeasures;
             latestMeasure.complete();  // Must be called after held notes are carried over.
-            latestMeasure = measures.get(measures.size() - 1);
-            updateMeasureFromMessages(latestMeasure, messageIterator);
+            latestMeasure = newMeasure;
+            next = updateMeasureFromEvents(latestMeasure, events, next);
+        }
+
+        if (latencyTracker != null) {
+            latencyTracker.onApplied(events);
         }
 
         // We send ding times for the latest measure only; it's too late for any in-betweens anyway.
@@ -105,19 +204,20 @@ public class NoteTracker
             sendDingTimes(latestMeasure);
         }
 
-        dropExpiredMeasures(measures);
+        dropExpiredMeasures(Math.max(mParameters.numMeasuresToKeep(), 1));
         return newMeasures;
     }
 
     // Sends this measure's metronome ding times to the metronome.
     private void sendDingTimes(Measure measure) {
         if (metronome == null) {
-            Log.e(TAG, "No metronome registered.");
+            Logger.e(TAG, "No metronome registered.");
             return;
         }
-        long[] times = measure.getDingTimes();
-        for (int n = 1; n < times.length; ++n) {  // Don't send first ding, but do send last.
-            metronome.dingAt(times[n], n == times.length - 1);
+        if (dingTimes.length != measure.getNumBeats() + 1) {
+            dingTimes = new long[measure.getNumBeats() + 1];  // Only when the meter changes.
         }
+        measure.getDingTimes(dingTimes);
+        metronome.scheduleMeasure(dingTimes);
     }
 }
@@ -6,26 +6,113 @@ import android.preference.PreferenceManager;
 
 /**
  * Contains parameters such as BPM, beats, and derived quantities.
- * NOTE: we currently use separate instances of Parameters throughout the code, so it's essential
- * that the Parameter class is stateless, except for SharedPreferences.
+ * <p/>
+ * A Parameters object is an immutable snapshot of the settings: all values are read from the
+ * SharedPreferences once, when the snapshot is built, so hot paths only read plain fields. get()
+ * returns the current snapshot. It is rebuilt and published atomically by a change listener
+ * whenever a setting changes. Callers that need consistent values over a longer span (such as a
+ * measure) hold on to a snapshot for that span, so changes take effect at its next start.
  */
-public class Parameters
+public class Parameters implements TrackerSettings
 {
-    private SharedPreferences prefs;
+    private static volatile Parameters current;
+
+    // SharedPreferences only keeps weak references to its listeners, so we keep this one alive.
+    private static SharedPreferences.OnSharedPreferenceChangeListener changeListener;
+
+    private final int beatsPerMinute;
+    private final int beatsPerMeasure;
+    private final long measureDurationNanos;
+    private final int subBeats;
+    private final String velocityCurve;
+    private final String velocityCalibration;
+    private final boolean metronomeOn;
+    private final boolean metronomeBell;
+    private final String metronomeEngine;
+    private final boolean recordSessions;
+    private final float replaySpeed;
+    private final boolean fakeMidi;
+    private final String fakeMidiScenario;
+    private final int fakeMidiRate;
+    private final long fakeMidiSeed;
+    private final boolean diagnostics;
+    private final boolean latencyStats;
+    private final boolean timingStats;
+
+    private Parameters(SharedPreferences prefs)
+    {
+        beatsPerMinute = prefs.getInt(SettingsActivity.BEATS_PER_MINUTE, 100);
+        beatsPerMeasure = prefs.getInt(SettingsActivity.BEATS_PER_MEASURE, 4);
+        measureDurationNanos =
+                beatsPerMeasure * 60 * 1000 * Clock.NANOS_PER_MILLI / beatsPerMinute;
+        subBeats = Math.max(parseInt(prefs, SettingsActivity.SUB_BEATS, 2), 1);
+        velocityCurve = prefs.getString(SettingsActivity.VELOCITY_CURVE, VelocityCurve.NONLINEAR);
+        velocityCalibration = prefs.getString(SettingsActivity.VELOCITY_CALIBRATION,
+                                              VelocityCurve.DEFAULT_BREAKPOINTS);
+        metronomeOn = prefs.getBoolean(SettingsActivity.METRONOME_ON, true);
+        metronomeBell = prefs.getBoolean(SettingsActivity.METRONOME_BELL, true);
+        metronomeEngine = prefs.getString(SettingsActivity.METRONOME_ENGINE,
+                                          Metronome.ENGINE_SAMPLES);
+        recordSessions = prefs.getBoolean(SettingsActivity.RECORD_SESSIONS, true);
+        replaySpeed = parseFloat(prefs, SettingsActivity.REPLAY_SPEED, 1.0f);
+        fakeMidi = prefs.getBoolean(SettingsActivity.FAKE_MIDI, false);
+        fakeMidiScenario = prefs.getString(SettingsActivity.FAKE_MIDI_SCENARIO,
+                                           FakeMidiGenerator.RANDOM);
+        fakeMidiRate = parseInt(prefs, SettingsActivity.FAKE_MIDI_RATE, 1000);
+        fakeMidiSeed = parseLong(prefs, SettingsActivity.FAKE_MIDI_SEED, 1);
+        diagnostics = prefs.getBoolean(SettingsActivity.DIAGNOSTICS, false);
+        latencyStats = prefs.getBoolean(SettingsActivity.LATENCY_STATS, false);
+        timingStats = prefs.getBoolean(SettingsActivity.TIMING_STATS, true);
+    }
+
+    // Returns the current snapshot. The first call reads the preferences and starts listening
+    // for changes.
+    public static Parameters get(Context context)
+    {
+        Parameters snapshot = current;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (Parameters.class) {
+            if (current == null) {
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+                changeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    public void onSharedPreferenceChanged(SharedPreferences changed, String key) {
+                        synchronized (Parameters.class) {
+                            current = new Parameters(changed);
+                        }
+                    }
+                };
+                prefs.registerOnSharedPreferenceChangeListener(changeListener);
+                current = new Parameters(prefs);
+            }
+            return current;
+        }
+    }
 
-    public Parameters(Context context) {
-        prefs = PreferenceManager.getDefaultSharedPreferences(context);
+    // Provides the current snapshot to NoteTracker, which picks it up at measure boundaries.
+    public static TrackerSettings.Source trackerSettings(final Context context)
+    {
+        return new TrackerSettings.Source() {
+            public TrackerSettings current() {
+                return get(context);
+            }
+        };
     }
 
     /**
      * Measures and timing parameters
      */
 
-    public int beatsPerMinute() { return prefs.getInt(SettingsActivity.BEATS_PER_MINUTE, 100); }
+    public int beatsPerMinute() { return beatsPerMinute; }
 
-    public int beatsPerMeasure() { return prefs.getInt(SettingsActivity.BEATS_PER_MEASURE, 4); }
+    public int beatsPerMeasure() { return beatsPerMeasure; }
 
-    public int subBeats() { return 2; }
+    // Grid lines per beat, for the measure grid and the timing statistics: 2 for eighths etc.
+    public int subBeats() { return subBeats; }
+
+    // Show how far note onsets are from the beat grid (see TimingAnalyzer).
+    public boolean timingStats() { return timingStats; }
 
     /**
      * Display parameters
@@ -45,7 +132,8 @@ public class Parameters
     // The levels are: MIN, PP, P, MP, MF, F, FF, MAX
     public float levelMarkerInterval() { return 1.0f / 7.0f; }
 
-    public long updateIntervalMillis() { return 20;  /* 20 msec ~ 50 Hz */ }
+    // While playing, the view is updated on every frame. When idle, we only update this often.
+    public long idleUpdateIntervalMillis() { return 100;  /* 100 msec ~ 10 Hz */ }
 
     // Never keep more than this many measures in memory.
     public int numMeasuresToKeep() { return 12; }
@@ -53,24 +141,82 @@ public class Parameters
     // Maximum level for Midi notes. This level will be converted to a volume of 1.0 internally.
     public int maxLevel() { return 0x80; }
 
+    // One of the curves defined in VelocityCurve.
+    public String velocityCurve() { return velocityCurve; }
+
+    // Keyboard-specific velocity breakpoints for VelocityCurve.CALIBRATED.
+    public String velocityCalibration() { return velocityCalibration; }
+
     /**
      * Sound parameters
      */
 
-    public boolean metronomeOn() { return prefs.getBoolean(SettingsActivity.METRONOME_ON, true); }
+    public boolean metronomeOn() { return metronomeOn; }
 
-    public boolean metronomeBell()
-    {
-        return prefs.getBoolean(SettingsActivity.METRONOME_BELL, true);
-    }
+    public boolean metronomeBell() { return metronomeBell; }
 
     public float metronomeVolume() { return 0.5f; }
 
+    // One of the engines defined in Metronome.
+    public String metronomeEngine() { return metronomeEngine; }
+
+    /**
+     * Recording parameters
+     */
+
+    // Append every received event to a SessionJournal.
+    public boolean recordSessions() { return recordSessions; }
+
+    // Speed factor for replaying recordings, or ReplayMidiInterface.AS_FAST_AS_POSSIBLE.
+    public float replaySpeed() { return replaySpeed; }
+
     /**
      * Debug parameters
      */
 
-    public boolean fakeMidi() { return prefs.getBoolean(SettingsActivity.FAKE_MIDI, false); }
+    public boolean fakeMidi() { return fakeMidi; }
+
+    // One of the scenarios defined in FakeMidiGenerator.
+    public String fakeMidiScenario() { return fakeMidiScenario; }
+
+    // Events per second for the rate-driven fake Midi scenarios.
+    public int fakeMidiRate() { return fakeMidiRate; }
+
+    public long fakeMidiSeed() { return fakeMidiSeed; }
+
+    // Record incoming events for the debug view and logcat dumps (see Diagnostics).
+    public boolean diagnostics() { return diagnostics; }
+
+    // Measure input-to-screen latency and show it in an overlay (see LatencyTracker).
+    public boolean latencyStats() { return latencyStats; }
+
+    // EditTextPreferences store strings, even with a numeric input type.
+    private static int parseInt(SharedPreferences prefs, String key, int defaultValue)
+    {
+        try {
+            return Integer.parseInt(prefs.getString(key, Integer.toString(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long parseLong(SharedPreferences prefs, String key, long defaultValue)
+    {
+        try {
+            return Long.parseLong(prefs.getString(key, Long.toString(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static float parseFloat(SharedPreferences prefs, String key, float defaultValue)
+    {
+        try {
+            return Float.parseFloat(prefs.getString(key, Float.toString(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
 
     /**
      * Derived parameters
@@ -78,6 +224,8 @@ public class Parameters
 
     public long measureDurationMillis()
     {
-        return beatsPerMeasure() * 60 * 1000 / beatsPerMinute();
+        return measureDurationNanos / Clock.NANOS_PER_MILLI;
     }
+
+    public long measureDurationNanos() { return measureDurationNanos; }
 }
@@ -0,0 +1,196 @@
+package org.voelkerweb.midiviz;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A MidiInterface that replays a recorded event stream (see ReplaySource), for reproducible load
+ * tests of the real NoteTracker/Visualizer pipeline.
+ * <p/>
+ * A replay thread feeds the events into a receive ring, just like UsbMidiHelper's waiter threads,
+ * at one of these speeds:
+ * - 1.0: real time, each event is released and timestamped at its recorded offset from the start.
+ * - N: N times faster; the offsets are divided by N.
+ * - AS_FAST_AS_POSSIBLE: events are released as soon as there is room in the ring and
+ *   timestamped when they are released. This finds the throughput limit of the consumer.
+ * In the timed modes, events carry their scheduled time rather than the time the thread actually
+ * got to them, so the same recording always produces the same timestamps relative to the start.
+ */
+public class ReplayMidiInterface implements MidiInterface
+{
+    private static final String TAG = "ReplayMidiInterface";
+
+    public static final float AS_FAST_AS_POSSIBLE = 0.0f;
+
+    private static final int RING_CAPACITY = 1024;
+
+    // Wait this long for the consumer when the ring is full.
+    private static final long BACKOFF_NANOS = 100 * 1000;
+
+    // Stop sleeping this long before an event is due and spin for the rest (as in
+    // MetronomeScheduler).
+    private static final long SPIN_NANOS = 200 * 1000;
+
+    private final Clock clock;
+    private final float speed;
+    private final MidiRingBuffer ring = new MidiRingBuffer(RING_CAPACITY);
+    private final MidiDispatcher dispatcher = new MidiDispatcher(this);
+
+    // Only used by the replay thread; handed over on start and stop.
+    private ReplaySource source;
+    private boolean pending = false;  // the source's current event hasn't been replayed yet
+
+    private volatile boolean finished = false;  // the source is exhausted and closed
+
+    private Thread replayThread;
+    private volatile long replayedCount = 0;
+
+    public ReplayMidiInterface(ReplaySource replaySource, Clock replayClock, float replaySpeed)
+    {
+        source = replaySource;
+        clock = replayClock;
+        speed = replaySpeed;
+    }
+
+    @Override
+    public boolean findAndConnectDevice()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean ready()
+    {
+        return true;
+    }
+
+    @Override
+    public void startReceiving()
+    {
+        if (replayThread == null && !finished) {
+            replayThread = new ReplayThread();  // Note that Java threads can run only once.
+            replayThread.start();
+        }
+    }
+
+    // Pauses the replay. It continues where it left off on the next startReceiving().
+    @Override
+    public void stopReceiving()
+    {
+        if (replayThread != null) {
+            replayThread.interrupt();
+            try {
+                replayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replayThread = null;
+        }
+    }
+
+    @Override
+    public void getEvents(MidiEventBatch batch)
+    {
+        ring.drainTo(batch);
+    }
+
+    @Override
+    public void setListener(MidiListener listener, Executor executor)
+    {
+        dispatcher.setListener(listener, executor);
+    }
+
+    // Stops the replay for good and closes the source, unless the replay thread already did.
+    public void close()
+    {
+        stopReceiving();
+        if (!finished) {
+            finished = true;
+            source.close();
+        }
+    }
+
+    // True once all events were put into the ring (or the source failed). The remaining events
+    // are picked up by the next getEvents() or pushed to the listener.
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    // Number of events replayed so far.
+    public long getReplayedCount()
+    {
+        return replayedCount;
+    }
+
+    private class ReplayThread extends Thread
+    {
+        @Override
+        public void run()
+        {
+            long start = clock.nanoTime();
+            long runStartCount = replayedCount;
+            long firstTime = -1;  // source time of the first event in this run
+            try {
+                while (!isInterrupted()) {
+                    if (!pending) {
+                        if (!source.advance()) {
+                            finished = true;
+                            break;
+                        }
+                        pending = true;
+                    }
+                    if (firstTime < 0) {
+                        firstTime = source.getTime();
+                    }
+                    long timestamp;
+                    if (speed > AS_FAST_AS_POSSIBLE) {
+                        long offset = (long) ((source.getTime() - firstTime) / speed);
+                        timestamp = start + offset;
+                        if (!sleepUntil(timestamp)) {
+                            break;
+                        }
+                    } else {
+                        timestamp = clock.nanoTime();
+                    }
+                    if (!ring.offer(source.getMessage(), timestamp)) {
+                        dispatcher.notifyEventsAvailable();
+                        LockSupport.parkNanos(BACKOFF_NANOS);  // The consumer is behind.
+                        continue;
+                    }
+                    pending = false;
+                    ++replayedCount;
+                    dispatcher.notifyEventsAvailable();
+                }
+            } catch (IOException e) {
+                Logger.e(TAG, "Replay failed: " + e.getMessage());
+                finished = true;
+            }
+            if (finished) {
+                source.close();
+            }
+            long count = replayedCount - runStartCount;
+            long nanos = clock.nanoTime() - start;
+            Logger.d(TAG, "Replayed " + count + " events in " + nanos / Clock.NANOS_PER_MILLI +
+                    " ms (" + (long) (count * 1e9 / Math.max(nanos, 1)) + " events/s)" +
+                    (finished ? ", done." : ""));
+        }
+
+        // Sleeps until the given clock time. Returns false if interrupted.
+        private boolean sleepUntil(long time)
+        {
+            long remaining = time - clock.nanoTime();
+            while (remaining > 0) {
+                if (isInterrupted()) {
+                    return false;
+                }
+                if (remaining > SPIN_NANOS) {
+                    LockSupport.parkNanos(remaining - SPIN_NANOS);
+                }
+                remaining = time - clock.nanoTime();
+            }
+            return !isInterrupted();
+        }
+    }
+}
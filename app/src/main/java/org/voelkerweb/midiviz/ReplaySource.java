@@ -0,0 +1,21 @@
+package org.voelkerweb.midiviz;
+
+import java.io.IOException;
+
+/**
+ * A recorded stream of MIDI events, read one event at a time, e.g. from a SessionJournal or a
+ * Standard MIDI File (see SmfReader). Used by ReplayMidiInterface.
+ */
+public interface ReplaySource
+{
+    // Moves to the next event. Returns false at the end of the recording.
+    boolean advance() throws IOException;
+
+    // The current event's packed message (see MidiEvent).
+    int getMessage();
+
+    // The current event's time in nanoseconds since the start of the recording. Never decreases.
+    long getTime();
+
+    void close();
+}
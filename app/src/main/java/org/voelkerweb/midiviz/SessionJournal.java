@@ -0,0 +1,390 @@
+package org.voelkerweb.midiviz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An append-only journal of every MIDI event received during a practice session, so nothing is
+ * lost when measures leave the display window.
+ * <p/>
+ * The journal file is mapped into memory segment by segment, so appending an event is just a few
+ * memory writes: no system calls, no locks and no allocations. A new segment is mapped (and the
+ * file extended) only once every RECORDS_PER_SEGMENT events, which is hours of playing.
+ * <p/>
+ * File layout, little endian:
+ * <pre>
+ *   header (32 bytes)  magic, version, wall clock time (ms) and Clock time (ns) at creation
+ *   records (16 bytes) timestamp (long, Clock ns), packed message (int, see MidiEvent), check (int)
+ * </pre>
+ * The check is written last and derived from the other two fields. The file is extended with
+ * zeros, which never form a valid record, so after a crash open() finds the end of the journal by
+ * scanning for the first record whose check doesn't match. A torn record at the tail and
+ * anything after it is cleared, and appending continues in its place. openReadOnly() recovers the
+ * same records without touching the file, e.g. for replaying it.
+ * <p/>
+ * A journal has a single writer; all methods must be called from the same thread.
+ */
+public class SessionJournal
+{
+    private static final String TAG = "SessionJournal";
+
+    private static final int MAGIC = 0x314A564D;  // "MVJ1"
+    private static final int VERSION = 1;
+    private static final int CHECK_SEED = 0x5EC7105E;
+
+    public static final String EXTENSION = ".journal";
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 16;
+    public static final int RECORDS_PER_SEGMENT = 64 * 1024;  // 1 MiB per segment
+    private static final long SEGMENT_SIZE = (long) RECORDS_PER_SEGMENT * RECORD_SIZE;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private final long startWallMillis;
+    private final long startNanos;
+    private final boolean readOnly;
+    private MappedByteBuffer header;
+    private long recordCount = 0;
+    private boolean failed = false;
+
+    private SessionJournal(File journalFile, long wallMillis, long nanos, boolean openReadOnly)
+            throws IOException
+    {
+        file = journalFile;
+        raf = new RandomAccessFile(journalFile, openReadOnly ? "r" : "rw");
+        channel = raf.getChannel();
+        startWallMillis = wallMillis;
+        startNanos = nanos;
+        readOnly = openReadOnly;
+        failed = openReadOnly;  // append() must not try to extend a read-only journal
+    }
+
+    /**
+     * Creates a new, empty journal. 'wallMillis' and 'nanos' are the wall clock and Clock times of
+     * the same instant, so Clock timestamps can later be converted to dates.
+     */
+    public static SessionJournal create(File file, long wallMillis, long nanos) throws IOException
+    {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file.getPath());
+        }
+        SessionJournal journal = new SessionJournal(file, wallMillis, nanos, false);
+        try {
+            journal.header = journal.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            journal.header.order(ByteOrder.LITTLE_ENDIAN);
+            journal.header.putInt(0, MAGIC);
+            journal.header.putInt(4, VERSION);
+            journal.header.putLong(8, wallMillis);
+            journal.header.putLong(16, nanos);
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Opens an existing journal, e.g. one left behind by a crash, and recovers all complete
+     * records. Appending continues after the last one.
+     */
+    public static SessionJournal open(File file) throws IOException
+    {
+        return open(file, false);
+    }
+
+    /**
+     * Opens an existing journal for reading only. Like open(), it stops at the first torn record,
+     * but leaves the file as it is, so it can't be appended to.
+     */
+    public static SessionJournal openReadOnly(File file) throws IOException
+    {
+        return open(file, true);
+    }
+
+    /**
+     * Deletes the oldest journals in 'dir' (files ending in EXTENSION) until at most 'maxCount'
+     * are left and they take up at most 'maxBytes' together. The newest journal is always kept,
+     * so call this right after creating a new one. Returns the number of deleted journals.
+     */
+    public static int deleteOldJournals(File dir, int maxCount, long maxBytes)
+    {
+        File[] journals = dir.listFiles();
+        if (journals == null) {
+            return 0;
+        }
+        Arrays.sort(journals, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                if (a.lastModified() != b.lastModified()) {
+                    return a.lastModified() > b.lastModified() ? -1 : 1;  // newest first
+                }
+                return b.getName().compareTo(a.getName());
+            }
+        });
+        int kept = 0;
+        long keptBytes = 0;
+        int deleted = 0;
+        for (File journal : journals) {
+            if (!journal.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            if (kept == 0 || (kept < maxCount && keptBytes + journal.length() <= maxBytes)) {
+                ++kept;
+                keptBytes += journal.length();
+            } else if (journal.delete()) {
+                ++deleted;
+            } else {
+                Logger.e(TAG, "Could not delete " + journal.getPath());
+            }
+        }
+        if (deleted > 0) {
+            Logger.d(TAG, "Deleted " + deleted + " old journals, kept " + kept + ".");
+        }
+        return deleted;
+    }
+
+    private static SessionJournal open(File file, boolean readOnly) throws IOException
+    {
+        RandomAccessFile probe = new RandomAccessFile(file, "r");
+        long wallMillis;
+        long nanos;
+        try {
+            if (probe.length() < HEADER_SIZE) {
+                throw new IOException("Not a session journal: " + file.getPath());
+            }
+            MappedByteBuffer h = probe.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                                        HEADER_SIZE);
+            h.order(ByteOrder.LITTLE_ENDIAN);
+            if (h.getInt(0) != MAGIC || h.getInt(4) != VERSION) {
+                throw new IOException("Not a session journal: " + file.getPath());
+            }
+            wallMillis = h.getLong(8);
+            nanos = h.getLong(16);
+        } finally {
+            probe.close();
+        }
+
+        SessionJournal journal = new SessionJournal(file, wallMillis, nanos, readOnly);
+        try {
+            journal.header = journal.channel.map(journal.mapMode(), 0, HEADER_SIZE);
+            journal.header.order(ByteOrder.LITTLE_ENDIAN);
+            journal.recover();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    // Maps the existing segments and counts the valid records.
+    private void recover() throws IOException
+    {
+        long existing = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        long count = 0;
+        while (count < existing) {
+            int segment = (int) (count / RECORDS_PER_SEGMENT);
+            if (segment == segments.size()) {
+                mapSegment(segment);
+            }
+            int pos = (int) (count % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+            MappedByteBuffer buffer = segments.get(segment);
+            if (buffer.getInt(pos + 12) != check(buffer.getLong(pos), buffer.getInt(pos + 8))) {
+                break;
+            }
+            ++count;
+        }
+        recordCount = count;
+        if (readOnly) {
+            return;
+        }
+
+        // Clear whatever follows, so records after a torn one can't resurface once appending
+        // overwrites the torn record.
+        long discarded = 0;
+        for (long i = count; i < existing; ++i) {
+            int segment = (int) (i / RECORDS_PER_SEGMENT);
+            if (segment == segments.size()) {
+                mapSegment(segment);
+            }
+            int pos = (int) (i % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+            MappedByteBuffer buffer = segments.get(segment);
+            if (buffer.getLong(pos) != 0 || buffer.getLong(pos + 8) != 0) {
+                buffer.putLong(pos, 0);
+                buffer.putLong(pos + 8, 0);
+                ++discarded;
+            }
+        }
+        if (discarded > 0) {
+            Logger.d(TAG, "Recovered " + count + " records, discarded " + discarded +
+                    " after a torn record.");
+        }
+    }
+
+    private FileChannel.MapMode mapMode()
+    {
+        return readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+    }
+
+    private static int check(long timestamp, int message)
+    {
+        return (message * 0x9E3779B1) ^ (int) timestamp ^ (int) (timestamp >>> 32) ^ CHECK_SEED;
+    }
+
+    private void mapSegment(int segment) throws IOException
+    {
+        long offset = HEADER_SIZE + segment * SEGMENT_SIZE;
+        // A read-only mapping can't extend the file, so it stops at the end of the file.
+        long size = readOnly ? Math.min(SEGMENT_SIZE, channel.size() - offset) : SEGMENT_SIZE;
+        MappedByteBuffer buffer = channel.map(mapMode(), offset, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        segments.add(buffer);
+    }
+
+    /**
+     * Appends a packed message (see MidiEvent) with its timestamp. Returns false if the journal
+     * is read-only or could not be extended; in the latter case recording stops, but the journal
+     * stays readable.
+     */
+    public boolean append(int message, long timestamp)
+    {
+        if (failed) {
+            return false;
+        }
+        int segment = (int) (recordCount / RECORDS_PER_SEGMENT);
+        if (segment == segments.size()) {
+            try {
+                mapSegment(segment);
+            } catch (IOException e) {
+                Logger.e(TAG, "Cannot extend journal, recording stopped: " + e.getMessage());
+                failed = true;
+                return false;
+            }
+        }
+        MappedByteBuffer buffer = segments.get(segment);
+        int pos = (int) (recordCount % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+        buffer.putLong(pos, timestamp);
+        buffer.putInt(pos + 8, message);
+        buffer.putInt(pos + 12, check(timestamp, message));  // Must come last, see recover().
+        ++recordCount;
+        return true;
+    }
+
+    // Appends all events of the batch. Returns false if recording has stopped.
+    public boolean appendAll(MidiEventBatch events)
+    {
+        for (int i = 0; i < events.size(); ++i) {
+            if (!append(events.getMessage(i), events.getTimestamp(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getRecordCount()
+    {
+        return recordCount;
+    }
+
+    public int getMessage(long i)
+    {
+        return segments.get((int) (i / RECORDS_PER_SEGMENT))
+                .getInt((int) (i % RECORDS_PER_SEGMENT) * RECORD_SIZE + 8);
+    }
+
+    public long getTimestamp(long i)
+    {
+        return segments.get((int) (i / RECORDS_PER_SEGMENT))
+                .getLong((int) (i % RECORDS_PER_SEGMENT) * RECORD_SIZE);
+    }
+
+    public long getStartWallMillis()
+    {
+        return startWallMillis;
+    }
+
+    public long getStartNanos()
+    {
+        return startNanos;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    // Writes the mapped pages to storage. The records are safe from app crashes as soon as they
+    // are appended; this protects them from power loss, too. Not meant for the ingest path.
+    public void force()
+    {
+        header.force();
+        for (MappedByteBuffer buffer : segments) {
+            buffer.force();
+        }
+    }
+
+    // Flushes and closes the file. The mappings stay valid until they are garbage collected, but
+    // the journal must not be used anymore.
+    public void close()
+    {
+        if (header != null && !readOnly) {
+            force();
+        }
+        try {
+            channel.close();
+            raf.close();
+        } catch (IOException e) {
+            Logger.e(TAG, "Could not close " + file.getPath() + ": " + e.getMessage());
+        }
+        failed = true;
+    }
+
+    // Returns a source replaying the records journaled so far, for ReplayMidiInterface. Closing
+    // the source closes the journal.
+    public ReplaySource newReplaySource()
+    {
+        return new ReplaySource()
+        {
+            private final long end = recordCount;
+            private long next = 0;
+            private int message;
+            private long time;
+
+            public boolean advance()
+            {
+                if (next >= end) {
+                    return false;
+                }
+                message = SessionJournal.this.getMessage(next);
+                long timestamp = getTimestamp(next) - getTimestamp(0);
+                time = Math.max(timestamp, time);  // Stragglers must not go back in time.
+                ++next;
+                return true;
+            }
+
+            public int getMessage()
+            {
+                return message;
+            }
+
+            public long getTime()
+            {
+                return time;
+            }
+
+            public void close()
+            {
+                SessionJournal.this.close();
+            }
+        };
+    }
+}
@@ -7,9 +7,21 @@ import android.preference.PreferenceFragment;
 public class SettingsActivity extends Activity {
     public static final String METRONOME_ON = "pref_metronome_on";
     public static final String METRONOME_BELL = "pref_metronome_bell";
+    public static final String METRONOME_ENGINE = "pref_metronome_engine";
     public static final String BEATS_PER_MEASURE = "pref_beats_per_measure";
     public static final String BEATS_PER_MINUTE = "pref_beats_per_minute";
+    public static final String SUB_BEATS = "pref_sub_beats";
+    public static final String VELOCITY_CURVE = "pref_velocity_curve";
+    public static final String VELOCITY_CALIBRATION = "pref_velocity_calibration";
+    public static final String RECORD_SESSIONS = "pref_record_sessions";
+    public static final String REPLAY_SPEED = "pref_replay_speed";
     public static final String FAKE_MIDI = "pref_fake_midi";
+    public static final String FAKE_MIDI_SCENARIO = "pref_fake_midi_scenario";
+    public static final String FAKE_MIDI_RATE = "pref_fake_midi_rate";
+    public static final String FAKE_MIDI_SEED = "pref_fake_midi_seed";
+    public static final String DIAGNOSTICS = "pref_diagnostics";
+    public static final String LATENCY_STATS = "pref_latency_stats";
+    public static final String TIMING_STATS = "pref_timing_stats";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -0,0 +1,256 @@
+package org.voelkerweb.midiviz;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the channel messages of a Standard MIDI File (format 0 or 1) in time order, streaming
+ * from a FileChannel.
+ * <p/>
+ * Every track gets a cursor with a small buffer of its own, and advance() merges the tracks by
+ * picking the cursor with the earliest pending event. Tempo changes are applied as they come by,
+ * so ticks convert to real time correctly across a tempo map. Memory use doesn't depend on the
+ * file size.
+ */
+public class SmfReader implements ReplaySource
+{
+    private static final int BUFFER_SIZE = 4 * 1024;
+    private static final int DEFAULT_MICROS_PER_QUARTER = 500000;  // 120 bpm
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final FileChannel channel;
+    private final int ticksPerQuarter;
+    private final TrackCursor[] tracks;
+
+    // Tempo map state: the tempo in effect since tempoTick, which was at tempoNanos.
+    private int microsPerQuarter = DEFAULT_MICROS_PER_QUARTER;
+    private long tempoTick = 0;
+    private long tempoNanos = 0;
+
+    private int message;
+    private long time;
+
+    public SmfReader(FileChannel fileChannel) throws IOException
+    {
+        channel = fileChannel;
+        ByteBuffer header = ByteBuffer.allocate(14);
+        readFully(header, 0);
+        if (header.getInt(0) != chunkType("MThd") || header.getInt(4) < 6) {
+            throw new IOException("Not a Standard MIDI File");
+        }
+        int format = header.getShort(8);
+        int numTracks = header.getShort(10) & 0xFFFF;
+        int division = header.getShort(12) & 0xFFFF;
+        if (format > 1) {
+            throw new IOException("Unsupported MIDI file format " + format);
+        }
+        if ((division & 0x8000) != 0 || division == 0) {
+            throw new IOException("SMPTE time division is not supported");
+        }
+        ticksPerQuarter = division;
+
+        // Find the track chunks, skipping any other chunks.
+        tracks = new TrackCursor[numTracks];
+        long offset = 8 + header.getInt(4);
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8);
+        int found = 0;
+        while (found < numTracks && offset + 8 <= channel.size()) {
+            chunkHeader.clear();
+            readFully(chunkHeader, offset);
+            long length = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+            if (chunkHeader.getInt(0) == chunkType("MTrk")) {
+                tracks[found++] = new TrackCursor(offset + 8, offset + 8 + length);
+            }
+            offset += 8 + length;
+        }
+        if (found < numTracks) {
+            throw new IOException("MIDI file has " + found + " of " + numTracks + " tracks");
+        }
+        for (TrackCursor track : tracks) {
+            track.readNext();
+        }
+    }
+
+    private static int chunkType(String type)
+    {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of MIDI file");
+            }
+        }
+    }
+
+    @Override
+    public boolean advance() throws IOException
+    {
+        while (true) {
+            // Pick the track with the earliest event. Ties go to the earlier track, so tempo
+            // changes in the conductor track apply before notes at the same tick.
+            TrackCursor next = null;
+            for (TrackCursor track : tracks) {
+                if (!track.done && (next == null || track.tick < next.tick)) {
+                    next = track;
+                }
+            }
+            if (next == null) {
+                return false;
+            }
+            long nanos = ticksToNanos(next.tick);
+            if (next.tempo > 0) {
+                tempoNanos = nanos;
+                tempoTick = next.tick;
+                microsPerQuarter = next.tempo;
+                next.readNext();
+                continue;
+            }
+            message = next.message;
+            time = nanos;
+            next.readNext();
+            return true;
+        }
+    }
+
+    private long ticksToNanos(long tick)
+    {
+        return tempoNanos +
+                (tick - tempoTick) * microsPerQuarter * NANOS_PER_MICRO / ticksPerQuarter;
+    }
+
+    @Override
+    public int getMessage()
+    {
+        return message;
+    }
+
+    @Override
+    public long getTime()
+    {
+        return time;
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.e("SmfReader", "Could not close MIDI file: " + e.getMessage());
+        }
+    }
+
+    // Reads one track chunk, one event ahead.
+    private class TrackCursor
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long fileOffset;  // next byte to load into the buffer
+        final long end;
+        int runningStatus = 0;
+
+        // The pending event: a channel message, or a tempo change if tempo > 0.
+        boolean done = false;
+        long tick = 0;
+        int message;
+        int tempo;
+
+        TrackCursor(long start, long chunkEnd)
+        {
+            fileOffset = start;
+            end = chunkEnd;
+            buffer.limit(0);
+        }
+
+        private boolean hasMore()
+        {
+            return buffer.hasRemaining() || fileOffset < end;
+        }
+
+        private int readByte() throws IOException
+        {
+            if (!buffer.hasRemaining()) {
+                if (fileOffset >= end) {
+                    throw new IOException("Truncated MIDI track");
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, end - fileOffset));
+                readFully(buffer, fileOffset);
+                fileOffset += buffer.limit();
+                buffer.flip();
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        private long readVarLength() throws IOException
+        {
+            long value = 0;
+            for (int i = 0; i < 4; ++i) {
+                int b = readByte();
+                value = (value << 7) | (b & 0x7F);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        private void skip(long n) throws IOException
+        {
+            for (long i = 0; i < n; ++i) {
+                readByte();
+            }
+        }
+
+        // Reads up to the next channel message or tempo change, skipping everything else.
+        void readNext() throws IOException
+        {
+            tempo = 0;
+            while (hasMore()) {
+                tick += readVarLength();
+                int b = readByte();
+                if (b == 0xFF) {
+                    int type = readByte();
+                    long length = readVarLength();
+                    if (type == 0x2F) {
+                        break;  // End of track.
+                    } else if (type == 0x51 && length == 3) {
+                        tempo = readByte() << 16 | readByte() << 8 | readByte();
+                        if (tempo > 0) {
+                            return;
+                        }
+                    } else {
+                        skip(length);
+                    }
+                } else if (b == 0xF0 || b == 0xF7) {
+                    skip(readVarLength());  // SysEx; we only replay channel messages.
+                } else {
+                    int status;
+                    int data1;
+                    if (b >= 0x80) {
+                        status = b;
+                        data1 = readByte();
+                        runningStatus = b;
+                    } else {
+                        if (runningStatus == 0) {
+                            throw new IOException("Data byte without status in MIDI track");
+                        }
+                        status = runningStatus;
+                        data1 = b;
+                    }
+                    int command = status & 0xF0;
+                    if (command == 0xC0 || command == 0xD0) {
+                        message = MidiEvent.pack(status, data1, 0, 2);
+                    } else {
+                        message = MidiEvent.pack(status, data1, readByte(), 3);
+                    }
+                    return;
+                }
+            }
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.voelkerweb.midiviz;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a Standard MIDI File incrementally through a small buffer, so files of any length are
+ * written in constant memory.
+ * <p/>
+ * Usage: beginTrack(), then any number of events with delta times in ticks, then endTrack(), once
+ * per track. Since the length of a track chunk is only known at its end, beginTrack() writes a
+ * placeholder, and endTrack() patches it in place. The number of tracks in the header is patched
+ * by close().
+ */
+public class SmfWriter
+{
+    public static final int FORMAT_SINGLE_TRACK = 0;
+    public static final int FORMAT_MULTI_TRACK = 1;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int META = 0xFF;
+    private static final int META_TRACK_NAME = 0x03;
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int META_TEMPO = 0x51;
+    private static final int META_TIME_SIGNATURE = 0x58;
+    private static final int MAX_META_HEADER_SIZE = 10;  // delta, 0xFF, type and length
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long position = 0;  // file position of the buffer's first byte
+    private long trackStart = -1;  // file position of the open track's length field
+    private int numTracks = 0;
+
+    // Starts a file of the given format with 'ticksPerQuarter' resolution at the start of the
+    // (empty) channel.
+    public SmfWriter(FileChannel fileChannel, int format, int ticksPerQuarter) throws IOException
+    {
+        channel = fileChannel;
+        putAscii("MThd");
+        buffer.putInt(6);
+        buffer.putShort((short) format);
+        buffer.putShort((short) 0);  // number of tracks, patched by close()
+        buffer.putShort((short) ticksPerQuarter);
+    }
+
+    public void beginTrack() throws IOException
+    {
+        ensureRoom(8);
+        putAscii("MTrk");
+        trackStart = position + buffer.position();
+        buffer.putInt(0);  // patched by endTrack()
+    }
+
+    public void writeTrackName(long delta, String name) throws IOException
+    {
+        byte[] bytes = name.getBytes("US-ASCII");
+        writeMetaHeader(delta, META_TRACK_NAME, bytes.length);
+        for (int i = 0; i < bytes.length; ) {
+            ensureRoom(1);
+            int n = Math.min(bytes.length - i, buffer.remaining());
+            buffer.put(bytes, i, n);
+            i += n;
+        }
+    }
+
+    // Tempo in microseconds per quarter note.
+    public void writeTempo(long delta, int microsPerQuarter) throws IOException
+    {
+        writeMetaHeader(delta, META_TEMPO, 3);
+        buffer.put((byte) (microsPerQuarter >>> 16));
+        buffer.put((byte) (microsPerQuarter >>> 8));
+        buffer.put((byte) microsPerQuarter);
+    }
+
+    // Time signature numerator/2^denominatorPower, with the usual 24 clocks per metronome click
+    // and 8 32nd notes per quarter.
+    public void writeTimeSignature(long delta, int numerator, int denominatorPower)
+            throws IOException
+    {
+        writeMetaHeader(delta, META_TIME_SIGNATURE, 4);
+        buffer.put((byte) numerator);
+        buffer.put((byte) denominatorPower);
+        buffer.put((byte) 24);
+        buffer.put((byte) 8);
+    }
+
+    // Writes a packed channel message (see MidiEvent). Each message carries its status byte; we
+    // don't use running status.
+    public void writeMessage(long delta, int message) throws IOException
+    {
+        ensureRoom(8);
+        putVarLength(delta);
+        int length = MidiEvent.length(message);
+        for (int i = 0; i < length; ++i) {
+            buffer.put((byte) (message >>> (8 * i)));
+        }
+    }
+
+    public void endTrack(long delta) throws IOException
+    {
+        writeMetaHeader(delta, META_END_OF_TRACK, 0);
+        flush();
+        int length = (int) (position - trackStart - 4);
+        ByteBuffer patch = ByteBuffer.allocate(4);
+        patch.putInt(0, length);
+        channel.write(patch, trackStart);
+        trackStart = -1;
+        ++numTracks;
+    }
+
+    // Writes everything out and patches the track count in the header. Does not close the
+    // channel.
+    public void close() throws IOException
+    {
+        if (trackStart >= 0) {
+            endTrack(0);
+        }
+        flush();
+        ByteBuffer patch = ByteBuffer.allocate(2);
+        patch.putShort(0, (short) numTracks);
+        channel.write(patch, 10);
+        channel.force(false);
+    }
+
+    // Writes the header of a meta event with 'length' bytes of data, and makes sure that the data
+    // fits into the buffer too, unless it is longer than the buffer.
+    private void writeMetaHeader(long delta, int type, int length) throws IOException
+    {
+        ensureRoom(MAX_META_HEADER_SIZE + Math.min(length, BUFFER_SIZE - MAX_META_HEADER_SIZE));
+        putVarLength(delta);
+        buffer.put((byte) META);
+        buffer.put((byte) type);
+        putVarLength(length);
+    }
+
+    // Writes a variable-length quantity: 7 bits per byte, most significant first, with the high
+    // bit set on all but the last byte. SMF limits these to 4 bytes (28 bits).
+    private void putVarLength(long value)
+    {
+        long v = Math.min(Math.max(value, 0), 0x0FFFFFFF);
+        if (v >= 1 << 21) {
+            buffer.put((byte) (0x80 | (v >>> 21)));
+        }
+        if (v >= 1 << 14) {
+            buffer.put((byte) (0x80 | ((v >>> 14) & 0x7F)));
+        }
+        if (v >= 1 << 7) {
+            buffer.put((byte) (0x80 | ((v >>> 7) & 0x7F)));
+        }
+        buffer.put((byte) (v & 0x7F));
+    }
+
+    private void putAscii(String s)
+    {
+        for (int i = 0; i < s.length(); ++i) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private void ensureRoom(int bytes) throws IOException
+    {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+}
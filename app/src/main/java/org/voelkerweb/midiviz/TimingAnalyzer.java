@@ -0,0 +1,170 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * Measures how far note onsets are from the beat grid, which is what students practice with the
+ * metronome.
+ * <p/>
+ * For every onset, the signed deviation from the nearest grid line (a beat or, with subBeats > 1,
+ * a sub-beat) is converted to milliseconds: negative means early, positive late. The statistics
+ * cover the last WINDOW_SIZE onsets, so they follow the player's progress:
+ * - mean and variance are updated with Welford's method, extended to also remove the onset that
+ *   leaves the window,
+ * - percentiles come from a histogram of BIN_MILLIS wide bins over +-RANGE_MILLIS; deviations
+ *   beyond that are counted in the outermost bins.
+ * Adding an onset is O(1) and doesn't allocate. Reading a percentile scans the NUM_BINS bins.
+ * <p/>
+ * An analyzer must only be used from one thread.
+ */
+public class TimingAnalyzer
+{
+    public static final int WINDOW_SIZE = 256;  // onsets
+    public static final float BIN_MILLIS = 2.0f;
+    public static final int RANGE_BINS = 50;  // bins on either side of the center bin
+    public static final float RANGE_MILLIS = RANGE_BINS * BIN_MILLIS;
+    public static final int NUM_BINS = 2 * RANGE_BINS + 1;
+
+    private int subBeats;
+    private final float[] window = new float[WINDOW_SIZE];  // deviations in ms, circular
+    private int head = 0;  // the oldest deviation, once the window is full
+    private int count = 0;
+    private double mean = 0.0;
+    private double m2 = 0.0;  // sum of squared differences from the mean
+    private final int[] bins = new int[NUM_BINS];
+    private int version = 0;
+
+    // 'numSubBeats' is the number of grid lines per beat, see Parameters.subBeats().
+    public TimingAnalyzer(int numSubBeats)
+    {
+        subBeats = Math.max(numSubBeats, 1);
+    }
+
+    /**
+     * Follows a change of the beat grid, e.g. after the settings changed. Deviations from the old
+     * grid aren't comparable to new ones, so the window is reset if the grid actually changes.
+     * Cheap if it doesn't, so it can be called on every update.
+     */
+    public void setSubBeats(int numSubBeats)
+    {
+        int newSubBeats = Math.max(numSubBeats, 1);
+        if (newSubBeats != subBeats) {
+            subBeats = newSubBeats;
+            reset();
+        }
+    }
+
+    public int getSubBeats()
+    {
+        return subBeats;
+    }
+
+    /**
+     * Adds a note onset at the given position in its measure (see Measure.getBeatForTime()).
+     * 'beatNanos' is the duration of a beat in that measure.
+     */
+    public void addOnset(float beat, long beatNanos)
+    {
+        float position = beat * subBeats;
+        float gridLines = position - Math.round(position);
+        float deviation = gridLines / subBeats * beatNanos / Clock.NANOS_PER_MILLI;
+
+        if (count == WINDOW_SIZE) {
+            remove(window[head]);
+        }
+        window[head] = deviation;
+        head = (head + 1) % WINDOW_SIZE;
+        add(deviation);
+        ++version;
+    }
+
+    private void add(float deviation)
+    {
+        ++count;
+        double delta = deviation - mean;
+        mean += delta / count;
+        m2 += delta * (deviation - mean);
+        ++bins[binFor(deviation)];
+    }
+
+    private void remove(float deviation)
+    {
+        --bins[binFor(deviation)];
+        if (--count == 0) {
+            mean = 0.0;
+            m2 = 0.0;
+            return;
+        }
+        double oldMean = mean;
+        mean = (oldMean * (count + 1) - deviation) / count;
+        m2 = Math.max(m2 - (deviation - oldMean) * (deviation - mean), 0.0);
+    }
+
+    private static int binFor(float deviation)
+    {
+        int bin = Math.round(deviation / BIN_MILLIS) + RANGE_BINS;
+        return Math.min(Math.max(bin, 0), NUM_BINS - 1);
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < NUM_BINS; ++i) {
+            bins[i] = 0;
+        }
+        head = 0;
+        count = 0;
+        mean = 0.0;
+        m2 = 0.0;
+        ++version;
+    }
+
+    // Number of onsets in the window.
+    public int getCount()
+    {
+        return count;
+    }
+
+    // Changes whenever an onset is added, so readers can tell if anything changed.
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public float getMeanMillis()
+    {
+        return (float) mean;
+    }
+
+    public float getStdDevMillis()
+    {
+        return count < 2 ? 0.0f : (float) Math.sqrt(m2 / (count - 1));
+    }
+
+    // Returns the deviation below which the given fraction of onsets fall, to the center of its
+    // bin.
+    public float getPercentileMillis(double fraction)
+    {
+        if (count == 0) {
+            return 0.0f;
+        }
+        int rank = Math.max((int) Math.ceil(fraction * count), 1);
+        int seen = 0;
+        for (int i = 0; i < NUM_BINS; ++i) {
+            seen += bins[i];
+            if (seen >= rank) {
+                return getBinMillis(i);
+            }
+        }
+        return RANGE_MILLIS;
+    }
+
+    // Number of onsets in the window that fall into bin i.
+    public int getBinCount(int i)
+    {
+        return bins[i];
+    }
+
+    // Center deviation of bin i.
+    public static float getBinMillis(int i)
+    {
+        return (i - RANGE_BINS) * BIN_MILLIS;
+    }
+}
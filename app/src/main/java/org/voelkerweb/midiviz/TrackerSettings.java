@@ -0,0 +1,30 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * The settings NoteTracker and VelocityCurve depend on. Parameters implements this on top of the
+ * shared preferences; benchmarks and other plain-JVM code can provide fixed values instead.
+ */
+public interface TrackerSettings
+{
+    // Provides the current settings. NoteTracker asks for them whenever a measure starts.
+    interface Source
+    {
+        TrackerSettings current();
+    }
+
+    int beatsPerMeasure();
+
+    long measureDurationNanos();
+
+    // Never keep more than this many measures in memory.
+    int numMeasuresToKeep();
+
+    // Maximum level for Midi notes, see VelocityCurve.LINEAR.
+    int maxLevel();
+
+    // One of the curves defined in VelocityCurve.
+    String velocityCurve();
+
+    // Keyboard-specific velocity breakpoints for VelocityCurve.CALIBRATED.
+    String velocityCalibration();
+}
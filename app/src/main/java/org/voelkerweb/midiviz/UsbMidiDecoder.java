@@ -0,0 +1,189 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * Decodes the 32-bit USB-MIDI event packets returned by a bulk transfer into MIDI messages.
+ * <p/>
+ * Each packet consists of a header byte (cable number in the high nibble, Code Index Number in the
+ * low nibble) followed by three MIDI bytes, padded with zeros for shorter messages. The CIN tells
+ * us how many of these bytes are valid (see the USB-MIDI 1.0 spec, table 4-1).
+ * <p/>
+ * The decoder reads the transfer buffer in place and hands each message to a Sink as a packed int
+ * (see MidiEvent), tagged with its cable number. SysEx messages, which USB-MIDI splits across
+ * packets, are reassembled into a preallocated buffer per cable and delivered in one piece. No
+ * allocations happen per packet.
+ * <p/>
+ * A decoder is stateful (partial SysEx messages) and must only be used by one thread.
+ * This has no Android dependencies, so decoding can be benchmarked on a plain JVM.
+ */
+public class UsbMidiDecoder
+{
+    private static final String TAG = "UsbMidiDecoder";
+
+    // According to the USB-MIDI standard, all packets are exactly 32bit. Shorter messages are
+    // padded.
+    public static final int PACKET_SIZE = 4;
+
+    public static final int NUM_CABLES = 16;
+
+    // Longer SysEx messages are dropped. This is plenty for the identity replies and parameter
+    // dumps a keyboard may send; we don't use SysEx for anything else.
+    public static final int MAX_SYSEX_LENGTH = 512;
+
+    private static final int SYSEX_START = 0xF0;
+    private static final int SYSEX_END = 0xF7;
+
+    /**
+     * Receives the decoded messages. The callbacks are made on the thread calling decode().
+     */
+    public interface Sink
+    {
+        // A channel, system common or real-time message; see MidiEvent for the packing.
+        void onMessage(int message, long timestamp);
+
+        // A complete SysEx message in data[0..length), including the leading 0xF0 and trailing
+        // 0xF7. The buffer is reused, so it is only valid during the call.
+        void onSysEx(int cable, byte[] data, int length, long timestamp);
+    }
+
+    private final byte[][] sysExBuffers = new byte[NUM_CABLES][MAX_SYSEX_LENGTH];
+    private final int[] sysExLengths = new int[NUM_CABLES];
+    private final boolean[] sysExActive = new boolean[NUM_CABLES];
+    private final boolean[] sysExOverflow = new boolean[NUM_CABLES];
+
+    private long droppedSysExCount = 0;
+
+    /**
+     * Decodes the packets in buf[0..length) and passes the messages to the sink, all with the
+     * given timestamp. A trailing partial packet is ignored. Returns the number of messages
+     * delivered.
+     */
+    public int decode(byte[] buf, int length, long timestamp, Sink sink)
+    {
+        int delivered = 0;
+        for (int i = 0; i + PACKET_SIZE <= length; i += PACKET_SIZE) {
+            int header = buf[i] & 0xFF;
+            int cable = header >>> 4;
+            int b0 = buf[i + 1] & 0xFF;
+            int b1 = buf[i + 2] & 0xFF;
+            int b2 = buf[i + 3] & 0xFF;
+            switch (header & 0x0F) {
+                case 0x0:  // Miscellaneous function codes, reserved.
+                case 0x1:  // Cable events, reserved.
+                    break;
+                case 0x2:  // Two-byte system common message, e.g. MTC quarter frame.
+                case 0xC:  // Program change.
+                case 0xD:  // Channel pressure.
+                    sink.onMessage(MidiEvent.withCable(MidiEvent.pack(b0, b1, 0, 2), cable),
+                                   timestamp);
+                    ++delivered;
+                    break;
+                case 0x3:  // Three-byte system common message, e.g. song position pointer.
+                case 0x8:  // Note off.
+                case 0x9:  // Note on.
+                case 0xA:  // Polyphonic key pressure.
+                case 0xB:  // Control change.
+                case 0xE:  // Pitch bend.
+                    sink.onMessage(MidiEvent.withCable(MidiEvent.pack(b0, b1, b2, 3), cable),
+                                   timestamp);
+                    ++delivered;
+                    break;
+                case 0x4:  // SysEx starts or continues.
+                    appendSysEx(cable, b0);
+                    appendSysEx(cable, b1);
+                    appendSysEx(cable, b2);
+                    break;
+                case 0x5:  // Single-byte system common message, or SysEx ends with one byte.
+                    if (b0 == SYSEX_END) {
+                        appendSysEx(cable, b0);
+                        delivered += finishSysEx(cable, timestamp, sink);
+                    } else {
+                        sink.onMessage(MidiEvent.withCable(MidiEvent.pack(b0, 0, 0, 1), cable),
+                                       timestamp);
+                        ++delivered;
+                    }
+                    break;
+                case 0x6:  // SysEx ends with two bytes.
+                    appendSysEx(cable, b0);
+                    appendSysEx(cable, b1);
+                    delivered += finishSysEx(cable, timestamp, sink);
+                    break;
+                case 0x7:  // SysEx ends with three bytes.
+                    appendSysEx(cable, b0);
+                    appendSysEx(cable, b1);
+                    appendSysEx(cable, b2);
+                    delivered += finishSysEx(cable, timestamp, sink);
+                    break;
+                case 0xF:  // Single byte. Some devices send SysEx this way, byte by byte.
+                    if (sysExActive[cable] && b0 < 0xF8) {
+                        appendSysEx(cable, b0);
+                        if (b0 == SYSEX_END) {
+                            delivered += finishSysEx(cable, timestamp, sink);
+                        }
+                    } else if (b0 == SYSEX_START) {
+                        appendSysEx(cable, b0);
+                    } else {
+                        sink.onMessage(MidiEvent.withCable(MidiEvent.pack(b0, 0, 0, 1), cable),
+                                       timestamp);
+                        ++delivered;
+                    }
+                    break;
+            }
+        }
+        return delivered;
+    }
+
+    // Number of SysEx messages dropped because they were malformed or too long.
+    public long droppedSysExCount()
+    {
+        return droppedSysExCount;
+    }
+
+    // Forgets any partially received SysEx messages, e.g. after the device was reconnected.
+    public void reset()
+    {
+        for (int cable = 0; cable < NUM_CABLES; ++cable) {
+            sysExActive[cable] = false;
+        }
+    }
+
+    private void appendSysEx(int cable, int b)
+    {
+        if (b == SYSEX_START) {
+            if (sysExActive[cable]) {
+                Logger.e(TAG, "SysEx on cable " + cable + " restarted before it ended.");
+                ++droppedSysExCount;
+            }
+            sysExActive[cable] = true;
+            sysExLengths[cable] = 0;
+            sysExOverflow[cable] = false;
+        } else if (!sysExActive[cable]) {
+            return;  // Continuation without a start, e.g. we connected in the middle of a message.
+        }
+        int n = sysExLengths[cable];
+        if (n < MAX_SYSEX_LENGTH) {
+            sysExBuffers[cable][n] = (byte) b;
+            sysExLengths[cable] = n + 1;
+        } else {
+            sysExOverflow[cable] = true;
+        }
+    }
+
+    // Delivers the SysEx message collected for the cable, if it is complete. Returns the number
+    // of messages delivered (0 or 1).
+    private int finishSysEx(int cable, long timestamp, Sink sink)
+    {
+        if (!sysExActive[cable]) {
+            ++droppedSysExCount;
+            return 0;
+        }
+        sysExActive[cable] = false;
+        if (sysExOverflow[cable]) {
+            Logger.e(TAG, "SysEx on cable " + cable + " exceeds " + MAX_SYSEX_LENGTH +
+                    " bytes, dropping it.");
+            ++droppedSysExCount;
+            return 0;
+        }
+        sink.onSysEx(cable, sysExBuffers[cable], sysExLengths[cable], timestamp);
+        return 1;
+    }
+}
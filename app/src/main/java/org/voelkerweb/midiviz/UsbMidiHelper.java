@@ -15,36 +15,49 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 /**
- * Helper class for establishing a connection to a Midi device and for receiving data transfers.
+ * Helper class for establishing connections to Midi devices and for receiving data transfers.
  * See http://developer.android.com/guide/topics/connectivity/usb/host.html for an overview of
- * Android USB programming.`
+ * Android USB programming.
+ * <p/>
+ * Every MIDI input endpoint of every connected device (e.g. a keyboard plus a pedal unit, or two
+ * keyboards for teacher and student) gets its own Port, with a waiter thread and a receive ring.
+ * A MidiStreamMerger combines the rings into a single, timestamp-ordered stream for the client.
  */
 public class UsbMidiHelper implements MidiInterface
 {
     private static final String TAG = "UsbMidiHelper";
     private static final String ACTION_USB_PERMISSION = "org.voelkerweb.usbwatcher.USB_PERMISSION";
 
-    private WaiterThread mWaiterThread;
+    // USB audio interface subclass of MIDI streaming interfaces.
+    private static final int SUBCLASS_MIDI_STREAMING = 3;
+
     private UsbManager mUsbManager;
-    private UsbDeviceConnection mDeviceConnection;
-    private UsbInterface mInterface;
-    private UsbEndpoint mEndpoint;
     private PendingIntent permissionIntent;
-    private boolean permissionGranted;
+    private Clock mClock;
+    private boolean mReceiving = false;
+
+    // Capacity of each receive ring. At 4 bytes per packet, a single bulk transfer carries at most
+    // a few dozen messages, so this leaves plenty of headroom for controller floods.
+    private static final int RING_CAPACITY = 1024;
+
+    // All connected input endpoints. Only accessed on the UI thread.
+    private ArrayList<Port> mPorts = new ArrayList<Port>();
 
-    // We store all MIDI messages in this queue (with timestamps), to be retrieved by the client.
-    private ConcurrentLinkedQueue<MidiMessage> mMessageQueue =
-            new ConcurrentLinkedQueue<MidiMessage>();
+    // Combines the receive rings of all ports into one stream. Only used on the UI thread.
+    private MidiStreamMerger mMerger = new MidiStreamMerger();
+
+    // Pushes messages to a registered listener as soon as they arrive.
+    private MidiDispatcher mDispatcher = new MidiDispatcher(this);
 
     // Creates a UsbMidiHelper and register a context. The context is needed for access to system
-    // services.
-    public UsbMidiHelper(Context context)
+    // services. Received messages are timestamped with the given clock.
+    public UsbMidiHelper(Context context, Clock clock)
     {
+        mClock = clock;
         mUsbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
 
         // Register broadcast receiver for usb permission request.
@@ -54,28 +67,43 @@ public class UsbMidiHelper implements MidiInterface
                                  new IntentFilter(ACTION_USB_PERMISSION));
     }
 
-    // Scans for a Midi device, asks for usage permission, and connects to the device.
-    // TODO: instead of using the first device, look for one with appropriate interface.
+    // Scans for Midi devices and asks for permission to use each of them. The devices are
+    // connected once the user grants permission. Returns false if there are no Midi devices.
     @Override
     public boolean findAndConnectDevice()
     {
         HashMap<String, UsbDevice> devices = mUsbManager.getDeviceList();
 
-        UsbDevice device = null;
+        boolean found = false;
         for (Map.Entry<String, UsbDevice> entry : devices.entrySet()) {
-            device = entry.getValue();
-            break;  // use the first device.
-        }
-        if (device == null) {
-            return false;
+            UsbDevice device = entry.getValue();
+            if (hasMidiInterface(device)) {
+                // Ask user for permission to connect to the USB device.
+                mUsbManager.requestPermission(device, permissionIntent);
+                found = true;
+            }
         }
+        return found;
+    }
 
-        // Ask user for permission to connect to the USB device.
-        mUsbManager.requestPermission(device, permissionIntent);
-        return true;
+    private static boolean isMidiInterface(UsbInterface intf)
+    {
+        return intf.getInterfaceClass() == UsbConstants.USB_CLASS_AUDIO &&
+                intf.getInterfaceSubclass() == SUBCLASS_MIDI_STREAMING;
     }
 
-    // Registers the USB device after the user grants permission.
+    private static boolean hasMidiInterface(UsbDevice device)
+    {
+        for (int ni = 0; ni < device.getInterfaceCount(); ++ni) {
+            if (isMidiInterface(device.getInterface(ni))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Registers the USB device after the user grants permission: opens a port for every MIDI
+    // input endpoint the device has.
     private boolean registerDevice(UsbDevice device)
     {
         if (device == null) {
@@ -83,85 +111,122 @@ public class UsbMidiHelper implements MidiInterface
             return false;
         }
 
-        UsbInterface suitableInterface = null;
-        UsbEndpoint suitableEndpoint = null;
+        UsbDeviceConnection connection = null;
+        int numPorts = 0;
         for (int ni = 0; ni < device.getInterfaceCount(); ++ni) {
             UsbInterface intf = device.getInterface(ni);
-            if (intf.getInterfaceClass() == UsbConstants.USB_CLASS_AUDIO && intf
-                    .getInterfaceSubclass() == 3 /* MIDI_OUT_JACK? */) {
-                for (int ne = 0; ne < intf.getEndpointCount(); ++ne) {
-                    UsbEndpoint endpoint = intf.getEndpoint(ne);
-                    if (endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK && endpoint
-                            .getDirection() == UsbConstants.USB_DIR_IN) {
-                        // We found a suitable device.
-                        suitableInterface = intf;
-                        suitableEndpoint = endpoint;
-                        break;  // TODO: break out of both loops!
+            if (!isMidiInterface(intf)) {
+                continue;
+            }
+            boolean firstOfInterface = true;
+            for (int ne = 0; ne < intf.getEndpointCount(); ++ne) {
+                UsbEndpoint endpoint = intf.getEndpoint(ne);
+                if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK ||
+                        endpoint.getDirection() != UsbConstants.USB_DIR_IN) {
+                    continue;
+                }
+                if (connection == null) {
+                    connection = mUsbManager.openDevice(device);  // @Nullable
+                    if (connection == null) {
+                        Log.e(TAG, "Could not open device connection.");
+                        return false;
                     }
                 }
+                addPort(new Port(connection, intf, endpoint, firstOfInterface));
+                firstOfInterface = false;
+                ++numPorts;
             }
         }
 
-        if (suitableInterface == null) {
+        if (numPorts == 0) {
             Log.e(TAG, "No suitable MIDI interface found.");
             return false;
         }
+        Log.d(TAG, "USB MIDI device connection established, " + numPorts + " input(s).");
+        return true;
+    }
 
-        mEndpoint = suitableEndpoint;
-        mInterface = suitableInterface;
-
-        mDeviceConnection = mUsbManager.openDevice(device);  // @Nullable
-        if (mDeviceConnection == null) {
-            Log.e(TAG, "Could not open device connection.");
-            return false;
+    private void addPort(Port port)
+    {
+        mPorts.add(port);
+        mMerger.addSource(port.ring);
+        if (mReceiving) {
+            port.start();  // The device was connected while we were already receiving.
         }
-
-        permissionGranted = true;
-        Log.d(TAG, "USB MIDI device connection established.");
-        return true;
     }
 
     @Override
     public boolean ready()
     {
-        return mDeviceConnection != null && mEndpoint != null && permissionGranted;
+        return !mPorts.isEmpty();
     }
 
     @Override
     public void startReceiving()
     {
-        Log.d(TAG, "USB waiter thread starting");
-        mDeviceConnection.claimInterface(mInterface, true);
-        mWaiterThread = new WaiterThread();  // Note that Java threads can run only once.
-        mWaiterThread.start();
+        Log.d(TAG, "USB waiter threads starting");
+        mReceiving = true;
+        for (Port port : mPorts) {
+            port.start();
+        }
     }
 
     @Override
     public void stopReceiving()
     {
-        Log.d(TAG, "USB waiter thread stopping");
-        synchronized (mWaiterThread) {
-            mWaiterThread.mStop = true;
-            mDeviceConnection.releaseInterface(mInterface);
+        Log.d(TAG, "USB waiter threads stopping");
+        mReceiving = false;
+        // Ask all threads to stop before releasing any interfaces, since ports of the same
+        // interface share the claim.
+        for (Port port : mPorts) {
+            port.requestStop();
+        }
+        for (Port port : mPorts) {
+            port.release();
         }
     }
 
-    // Retrieves and clears all messages from the queue. Note that messages are only added to the
-    // queue if no receiver is specified in the constructor.
+    // Moves all messages from the rings into the batch, in timestamp order.
     @Override
-    public List<MidiMessage> getMessages()
-    {
-        List<MidiMessage> messages = new ArrayList<MidiMessage>();
-        while (true) {
-            // poll removes and returns the head of the queue, or null if the queue is empty.
-            MidiMessage midi = mMessageQueue.poll();
-            if (midi != null) {
-                messages.add(midi);
-            } else {
-                break;  // We're done.
-            }
+    public void getEvents(MidiEventBatch batch)
+    {
+        mMerger.drainTo(batch);
+    }
+
+    @Override
+    public void setListener(MidiListener listener, Executor executor)
+    {
+        mDispatcher.setListener(listener, executor);
+    }
+
+    // Returns how full the fullest receive ring is, between 0 (empty) and 1 (full).
+    public float getRingFillLevel()
+    {
+        float level = 0.0f;
+        for (Port port : mPorts) {
+            level = Math.max(level, port.ring.fillLevel());
+        }
+        return level;
+    }
+
+    // Returns the highest number of messages that were ever waiting in any receive ring.
+    public int getRingHighWaterMark()
+    {
+        int mark = 0;
+        for (Port port : mPorts) {
+            mark = Math.max(mark, port.ring.highWaterMark());
         }
-        return messages;
+        return mark;
+    }
+
+    // Returns the number of messages dropped because a receive ring was full.
+    public long getDroppedMessageCount()
+    {
+        long count = 0;
+        for (Port port : mPorts) {
+            count += port.ring.droppedCount();
+        }
+        return count;
     }
 
     // Receives the intent generated when the user grants permission to use the USB device.
@@ -187,17 +252,104 @@ public class UsbMidiHelper implements MidiInterface
         }
     }
 
-    // A separate thread that handles usb data transfers.
+    // One MIDI input endpoint, with its own waiter thread, decoder and receive ring. The waiter
+    // thread is the ring's only producer and the UI thread its only consumer.
+    private class Port
+    {
+        final UsbDeviceConnection connection;
+        final UsbInterface intf;
+        final UsbEndpoint endpoint;
+        final boolean ownsInterface;  // The first port of an interface claims and releases it.
+        final MidiRingBuffer ring = new MidiRingBuffer(RING_CAPACITY);
+
+        // Turns the raw USB packets into messages. Only used by the waiter thread.
+        final UsbMidiDecoder decoder = new UsbMidiDecoder();
+
+        // Receives the decoded messages on the waiter thread and queues them for the client. We
+        // don't use SysEx, so we just note it in the log.
+        final UsbMidiDecoder.Sink sink = new UsbMidiDecoder.Sink()
+        {
+            // Ring's droppedCount() when the current overflow started, or -1 if there is none.
+            // Logging every dropped message would only slow the waiter thread down further, so
+            // we log once when an overflow starts and once when it ends.
+            private long droppedBefore = -1;
+
+            public void onMessage(int message, long timestamp)
+            {
+                if (!ring.offer(message, timestamp)) {
+                    if (droppedBefore < 0) {
+                        droppedBefore = ring.droppedCount() - 1;
+                        Log.e(TAG, "Receive ring full, dropping messages.");
+                    }
+                } else if (droppedBefore >= 0) {
+                    long dropped = ring.droppedCount();
+                    Log.e(TAG, "Receive ring overflow ended, dropped " + (dropped - droppedBefore) +
+                          " messages (" + dropped + " in total).");
+                    droppedBefore = -1;
+                }
+            }
+
+            public void onSysEx(int cable, byte[] data, int length, long timestamp)
+            {
+                Log.d(TAG, "Ignoring " + length + " byte SysEx message on cable " + cable);
+            }
+        };
+
+        WaiterThread thread;
+
+        Port(UsbDeviceConnection connection, UsbInterface intf, UsbEndpoint endpoint,
+             boolean ownsInterface)
+        {
+            this.connection = connection;
+            this.intf = intf;
+            this.endpoint = endpoint;
+            this.ownsInterface = ownsInterface;
+        }
+
+        void start()
+        {
+            if (ownsInterface) {
+                connection.claimInterface(intf, true);
+            }
+            thread = new WaiterThread(this);  // Note that Java threads can run only once.
+            thread.start();
+        }
+
+        void requestStop()
+        {
+            if (thread != null) {
+                synchronized (thread) {
+                    thread.mStop = true;
+                }
+            }
+        }
+
+        // Releasing the interface makes a pending bulkTransfer return, so the thread can exit.
+        void release()
+        {
+            if (ownsInterface) {
+                connection.releaseInterface(intf);
+            }
+            thread = null;
+        }
+    }
+
+    // A separate thread that handles usb data transfers for one port.
     // NOTE: this is copied almost verbatim from levien's UsbMidiDevice.java
     private class WaiterThread extends Thread
     {
         public boolean mStop;
+        private final Port mPort;
+
+        WaiterThread(Port port)
+        {
+            mPort = port;
+        }
 
         @Override
         public void run()
         {
-            mStop = false;
-            byte[] buf = new byte[mEndpoint.getMaxPacketSize()];
+            byte[] buf = new byte[mPort.endpoint.getMaxPacketSize()];
             while (true) {
                 synchronized (this) {
                     if (mStop) {
@@ -209,33 +361,14 @@ public class UsbMidiHelper implements MidiInterface
                 // The timeout is unnecessary since bulkTransfer returns when we release the
                 // interface.
                 final int TIMEOUT = 60000;  // Arbitrary timeout of 1 min.
-                int nBytes = mDeviceConnection.bulkTransfer(mEndpoint, buf, buf.length, TIMEOUT);
+                int nBytes = mPort.connection.bulkTransfer(mPort.endpoint, buf, buf.length,
+                                                           TIMEOUT);
                 if (nBytes < 0) {
                     Log.e(TAG, "bulkTransfer error: " + nBytes);
                 }
-                // According to the USB-MIDI standard,  all packets are exactly 32bit. Shorter
-                // messages are padded.
-                for (int i = 0; i < nBytes; i += 4) {
-                    int codeIndexNumber = buf[i] & 0xf;
-                    int payloadBytes = 0;
-                    if (codeIndexNumber == 8 || codeIndexNumber == 9 || codeIndexNumber == 11 ||
-                            codeIndexNumber == 14) {
-                        payloadBytes = 3;
-                    } else if (codeIndexNumber == 12) {
-                        payloadBytes = 2;
-                    }
-                    if (payloadBytes > 0) {
-                        MidiMessage midi = new MidiMessage();
-                        midi.timestamp = System.currentTimeMillis();
-                        // TODO: this is strange. First byte seems redundant. Figure this out.
-                        midi.data = new byte[payloadBytes];
-                        for (int j = 1; j <= payloadBytes; ++j) {
-                            midi.data[j - 1] = buf[i + j];
-                        }
-                        mMessageQueue.add(midi);
-                    } else {
-                        Log.d(TAG, "empty message");
-                    }
+                long now = mClock.nanoTime();  // All messages in a transfer arrived together.
+                if (mPort.decoder.decode(buf, nBytes, now, mPort.sink) > 0) {
+                    mDispatcher.notifyEventsAvailable();
                 }
             }
         }
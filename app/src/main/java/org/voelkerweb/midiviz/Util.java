@@ -2,12 +2,22 @@ package org.voelkerweb.midiviz;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.TimeZone;
 
 public class Util
 {
-    public static String formatTime(long timestamp)
+    // SimpleDateFormat is expensive to create but not thread-safe, hence the synchronization.
+    private static final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+
+    static {
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));  // We format durations, not dates.
+    }
+
+    // Formats a Clock timestamp in nanoseconds. Since the clock is monotonic rather than a wall
+    // clock, this is only useful for comparing timestamps with each other.
+    public static synchronized String formatTime(long timestamp)
     {
-        return new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(timestamp));
+        return timeFormat.format(new Date(timestamp / Clock.NANOS_PER_MILLI));
     }
 
     public static int byteToUnsignedInt(byte b)
@@ -0,0 +1,121 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * Converts Midi "velocities" (0 to 127) to note levels between 0 and 1 via precomputed lookup
+ * tables, so that computing a note's level costs a single array read.
+ * <p/>
+ * The available curves are:
+ * - NONLINEAR: piecewise linear through fixed breakpoints for the dynamics MIN, PP, P, MP, MF, F,
+ *   FF and MAX, which are spaced evenly on the level axis.
+ * - LINEAR: velocity / Parameters.maxLevel().
+ * - CALIBRATED: like NONLINEAR, but with breakpoints measured for a particular keyboard.
+ */
+public class VelocityCurve
+{
+    private static final String TAG = "VelocityCurve";
+
+    public static final String NONLINEAR = "nonlinear";
+    public static final String LINEAR = "linear";
+    public static final String CALIBRATED = "calibrated";
+
+    public static final int NUM_VELOCITIES = 128;
+
+    // Velocities at which the levels MIN, PP, P, MP, MF, F, FF and MAX are reached.
+    public static final String DEFAULT_BREAKPOINTS = "10,20,30,40,55,70,90,127";
+
+    // The last table we built, and the settings it was built from. Tables only change when the
+    // user changes the settings, so this saves us from recomputing them for every measure.
+    private static String cachedKey;
+    private static float[] cachedLevels;
+
+    // Returns the lookup table for the curve selected in the parameters. Callers must not modify
+    // the returned array.
+    public static synchronized float[] levelsFor(TrackerSettings parameters)
+    {
+        String curve = parameters.velocityCurve();
+        String key = curve + ":" + parameters.maxLevel() + ":" +
+                (CALIBRATED.equals(curve) ? parameters.velocityCalibration() : "");
+        if (!key.equals(cachedKey)) {
+            cachedLevels = build(curve, parameters.maxLevel(), parameters.velocityCalibration());
+            cachedKey = key;
+        }
+        return cachedLevels;
+    }
+
+    private static float[] build(String curve, int maxLevel, String calibration)
+    {
+        if (LINEAR.equals(curve)) {
+            return linear(maxLevel);
+        }
+        if (CALIBRATED.equals(curve)) {
+            int[] breakpoints = parseBreakpoints(calibration);
+            if (breakpoints != null) {
+                return piecewiseLinear(breakpoints);
+            }
+            Logger.e(TAG, "Invalid velocity calibration '" + calibration + "', using default.");
+        } else if (!NONLINEAR.equals(curve)) {
+            Logger.e(TAG, "Unknown velocity curve '" + curve + "', using default.");
+        }
+        return piecewiseLinear(parseBreakpoints(DEFAULT_BREAKPOINTS));
+    }
+
+    public static float[] linear(int maxLevel)
+    {
+        float[] levels = new float[NUM_VELOCITIES];
+        for (int v = 0; v < NUM_VELOCITIES; ++v) {
+            levels[v] = Math.min(Util.safeDiv(v, maxLevel), 1.0f);
+        }
+        return levels;
+    }
+
+    // Builds a table that interpolates linearly between the breakpoints, which are reached at
+    // evenly spaced levels. Velocities up to the first breakpoint map to 0, velocities beyond the
+    // last one map to 1.
+    public static float[] piecewiseLinear(int[] breakpoints)
+    {
+        float[] levels = new float[NUM_VELOCITIES];
+        float levelStep = 1.0f / (breakpoints.length - 1);
+        int k = 1;
+        for (int v = 0; v < NUM_VELOCITIES; ++v) {
+            while (k < breakpoints.length && v > breakpoints[k]) {
+                ++k;
+            }
+            if (v <= breakpoints[0]) {
+                levels[v] = 0.0f;
+            } else if (k == breakpoints.length) {
+                levels[v] = 1.0f;
+            } else {
+                int last = breakpoints[k - 1];
+                int current = breakpoints[k];
+                levels[v] = levelStep * (k - 1 + Util.safeDiv(v - last, current - last));
+            }
+        }
+        return levels;
+    }
+
+    // Parses a comma separated list of strictly increasing velocities, e.g. DEFAULT_BREAKPOINTS.
+    // Returns null if the list is malformed.
+    public static int[] parseBreakpoints(String list)
+    {
+        if (list == null) {
+            return null;
+        }
+        String[] parts = list.split(",");
+        if (parts.length < 2) {
+            return null;
+        }
+        int[] breakpoints = new int[parts.length];
+        try {
+            for (int n = 0; n < parts.length; ++n) {
+                breakpoints[n] = Integer.parseInt(parts[n].trim());
+                if (breakpoints[n] < 0 || breakpoints[n] >= NUM_VELOCITIES ||
+                        (n > 0 && breakpoints[n] <= breakpoints[n - 1])) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return breakpoints;
+    }
+}
@@ -0,0 +1,31 @@
+package org.voelkerweb.midiviz;
+
+/**
+ * A Clock that only advances when told to, for running the pipeline deterministically and as
+ * fast as the CPU allows.
+ */
+public class VirtualClock implements Clock
+{
+    private volatile long now;
+
+    public VirtualClock(long startNanos)
+    {
+        now = startNanos;
+    }
+
+    @Override
+    public long nanoTime()
+    {
+        return now;
+    }
+
+    public void set(long nanos)
+    {
+        now = nanos;
+    }
+
+    public void advance(long nanos)
+    {
+        now += nanos;
+    }
+}
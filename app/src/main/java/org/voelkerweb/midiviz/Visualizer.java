@@ -2,11 +2,13 @@ package org.voelkerweb.midiviz;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.util.AttributeSet;
+import android.view.MotionEvent;
 import android.view.View;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
 
 /**
  * This is a view for the canvas on which the Midi visualizations are drawn. For creating custom
@@ -19,38 +21,181 @@ import java.util.List;
 public class Visualizer extends View
 {
     private static final String TAG = "Visualizer";
+    private static final float OVERLAY_TEXT_SIZE = 20.0f;
+    private static final String HISTORY_FILE = "measure-history.bin";
 
-    private Parameters parameters;
+    private Parameters parameters;  // the current snapshot as of the last update()
     private NoteTracker noteTracker;
+    private MeasureHistory history;
     private NotePainter notePainter;
+    private MeasureBitmapCache bitmapCache = new MeasureBitmapCache();
     private NotePainter.Area area = new NotePainter.Area();
+    private LatencyTracker latencyTracker;
+    private TimingAnalyzer timingAnalyzer;
+    private int drawnTimingVersion = 0;
+    private Paint overlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
     private int currentColumn = -1;  // So the first measure starts in column 0.
+    private long currentTime = 0;  // Clock time of the last update, used for drawing.
+
+    // How far the user has scrolled back into the history, in pixels. 0 shows the current row
+    // at the top.
+    private float scrollOffset = 0.0f;
+    private float lastTouchY;
 
     public Visualizer(Context context, AttributeSet attrs)
     {
         super(context, attrs);
-        parameters = new Parameters(context);
-        noteTracker = new NoteTracker(parameters);
+        parameters = Parameters.get(context);
+        noteTracker = new NoteTracker(Parameters.trackerSettings(context));
         notePainter = new NotePainter(parameters);
+        history = new MeasureHistory(new File(context.getCacheDir(), HISTORY_FILE));
+        history.setLoadListener(new Runnable()
+        {
+            public void run()
+            {
+                postInvalidate();  // A spilled measure has been read, so draw it now.
+            }
+        });
+        noteTracker.registerHistory(history);
+        timingAnalyzer = new TimingAnalyzer(parameters.subBeats());
+        noteTracker.registerTimingAnalyzer(timingAnalyzer);
         setKeepScreenOn(true);  // TODO: settings
+        overlayPaint.setColor(Color.DKGRAY);
+        overlayPaint.setTextSize(OVERLAY_TEXT_SIZE);
     }
 
     public void registerMetronome(Metronome metronome) {
         noteTracker.registerMetronome(metronome);
     }
 
+    // Registers a latency tracker, which is notified about applied and drawn events. If it is
+    // enabled, its histograms are shown in an overlay.
+    public void registerLatencyTracker(LatencyTracker tracker) {
+        latencyTracker = tracker;
+        noteTracker.registerLatencyTracker(tracker);
+    }
+
+    // Deletes the history's spill file. Call when the activity is destroyed.
+    public void close()
+    {
+        history.close();
+    }
+
     /**
-     * Processes the messages via NoteTracker and invalidates the view so it gets redrawn.
+     * Processes the events via NoteTracker and invalidates the view so it gets redrawn. 'time' is
+     * the current Clock time; the view is drawn as of this time.
      */
-    public void update(List<MidiMessage> messages)
+    public void update(MidiEventBatch events, long time)
     {
-        int numMeasuresAdded = noteTracker.update(messages);
-        currentColumn = (currentColumn + numMeasuresAdded) % parameters.numMeasuresPerRow();
+        currentTime = time;
+        parameters = Parameters.get(getContext());
+        notePainter.setParameters(parameters);
+        timingAnalyzer.setSubBeats(parameters.subBeats());  // before it sees the new onsets
+        int numMeasuresPerRow = parameters.numMeasuresPerRow();
+        int numMeasuresAdded = noteTracker.update(events, time);
+        int numRowsAdded = (currentColumn + numMeasuresAdded) / numMeasuresPerRow;
+        currentColumn = (currentColumn + numMeasuresAdded) % numMeasuresPerRow;
 
-        // TODO: it would be more efficient to just invalidate the currently active measure
-        // via .invalidateDrawable(drawable).
-        invalidate();
+        if (scrollOffset > 0.0f) {
+            if (containsNoteOn(events)) {
+                // Playing again, so jump back to the current row.
+                scrollOffset = 0.0f;
+                invalidate();
+                return;
+            }
+            // Keep the measures the user scrolled to in place while new rows are started.
+            scrollOffset += numRowsAdded * (parameters.measureHeight() + parameters.rowSpacing());
+        }
+
+        if (numMeasuresAdded > 0) {
+            // All measures move, so everything needs to be redrawn.
+            invalidate();
+        } else if (scrollOffset < parameters.measureHeight()) {
+            // Only the active measure can change. It's always in the top row.
+            float measureWidth = parameters.measureWidth();
+            float margin = NotePainter.MARKER_SIZE + 1;
+            invalidate((int) (measureWidth * currentColumn - margin),
+                       (int) Math.max(-scrollOffset - margin, 0),
+                       (int) Math.ceil(measureWidth * (currentColumn + 1) + margin),
+                       (int) Math.ceil(parameters.measureHeight() - scrollOffset + margin));
+        }
+        if (numMeasuresAdded == 0) {
+            // The overlays below the measures aren't covered by invalidating the active measure.
+            // They are stacked as in onDraw().
+            float top = (parameters.measureHeight() + parameters.rowSpacing()) *
+                    parameters.numRowsToDisplay();
+            if (parameters.timingStats()) {
+                if (timingAnalyzer.getVersion() != drawnTimingVersion) {
+                    invalidate(0, (int) top,
+                               (int) Math.ceil(parameters.measureWidth() * numMeasuresPerRow),
+                               (int) Math.ceil(top + NotePainter.TIMING_OVERLAY_HEIGHT));
+                }
+                top += NotePainter.TIMING_OVERLAY_HEIGHT;
+            }
+            if (latencyTracker != null && latencyTracker.isEnabled()) {
+                invalidate(0, (int) top, getWidth(),
+                           (int) Math.ceil(top + getLatencyOverlayHeight()));
+            }
+        }
+    }
+
+    private static boolean containsNoteOn(MidiEventBatch events)
+    {
+        for (int i = 0; i < events.size(); ++i) {
+            int message = events.getMessage(i);
+            if (MidiEvent.command(message) == MidiEvent.NOTE_ON && MidiEvent.data2(message) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Dragging up scrolls back into the history, dragging down returns to the current row.
+    @Override
+    public boolean onTouchEvent(MotionEvent event)
+    {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                lastTouchY = event.getY();
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                float offset = Math.min(Math.max(scrollOffset + lastTouchY - event.getY(), 0.0f),
+                                        maxScrollOffset());
+                lastTouchY = event.getY();
+                if (offset != scrollOffset) {
+                    scrollOffset = offset;
+                    invalidate();
+                }
+                return true;
+            default:
+                return super.onTouchEvent(event);
+        }
+    }
+
+    // Scrolling stops when the oldest row is at the bottom of the display.
+    private float maxScrollOffset()
+    {
+        int numMeasuresPerRow = parameters.numMeasuresPerRow();
+        int total = history.size() + noteTracker.getMeasureCount();
+        if (total == 0) {
+            return 0.0f;
+        }
+        int firstInTopRow = total - 1 - currentColumn;
+        int numRows = (firstInTopRow + numMeasuresPerRow - 1) / numMeasuresPerRow + 1;
+        float rowHeight = parameters.measureHeight() + parameters.rowSpacing();
+        return Math.max(numRows - parameters.numRowsToDisplay(), 0) * rowHeight;
+    }
+
+    // Clock time at which the first measure started, or -1. See NoteTracker.getOriginTime().
+    public long getMeasureOriginTime()
+    {
+        return noteTracker.getOriginTime();
+    }
+
+    public boolean hasHeldNotes()
+    {
+        return noteTracker.hasHeldNotes();
     }
 
     @Override
@@ -58,11 +203,12 @@ public class Visualizer extends View
     {
         super.onDraw(canvas);
 
-        // Since we want to complete the current row with empty measures, it's easiest to just
-        // scan backwards through columns and rows until we either have drawn all required rows or
-        // ran out of measures to draw.
+        // Measures are numbered across the history and the live measures, oldest first. Row 0 is
+        // the current row, completed with empty measures; each row below it holds the
+        // numMeasuresPerRow measures before. When scrolled back, we start at a later row and
+        // shift everything up by the remaining fraction of a row.
         //
-        // Cache display parameters, since they may require expensive lookups.
+        // Cache display parameters, so they stay consistent for the whole frame.
         int numRowsToDisplay = parameters.numRowsToDisplay();
         int numMeasuresPerRow = parameters.numMeasuresPerRow();
         float measureWidth = parameters.measureWidth();
@@ -70,20 +216,89 @@ public class Visualizer extends View
         float rowSpacing = parameters.rowSpacing();
         int beatsPerMeasure = parameters.beatsPerMeasure();
         int subBeats = parameters.subBeats();
+        float margin = NotePainter.MARKER_SIZE;
+
+        float rowHeight = measureHeight + rowSpacing;
+        int firstRow = (int) (scrollOffset / rowHeight);
+        float shift = scrollOffset - firstRow * rowHeight;
+        int numRowsToDraw = shift > 0.0f ? numRowsToDisplay + 1 : numRowsToDisplay;
+
+        int numHistory = history.size();
+        int total = numHistory + noteTracker.getMeasureCount();
+        int firstInTopRow = total - 1 - currentColumn;
 
-        ArrayList<Measure> measures = noteTracker.getMeasures();
-        int idx = measures.size() - 1;
-        for (int row = 0; row < numRowsToDisplay && idx >= 0; ++row) {
-            for (int col = numMeasuresPerRow - 1; col >= 0 && idx >= 0; --col) {
-                area.assign(measureWidth * col, (measureHeight + rowSpacing) * row,
+        canvas.save();
+        canvas.clipRect(0.0f, 0.0f, measureWidth * numMeasuresPerRow,
+                        rowHeight * numRowsToDisplay);
+        for (int row = 0; row < numRowsToDraw && total > 0; ++row) {
+            int firstInRow = firstInTopRow - (firstRow + row) * numMeasuresPerRow;
+            if (firstInRow + numMeasuresPerRow <= 0) {
+                break;  // Ran out of measures.
+            }
+            for (int col = 0; col < numMeasuresPerRow; ++col) {
+                int idx = firstInRow + col;
+                area.assign(measureWidth * col, rowHeight * row - shift,
                             measureWidth, measureHeight);
-                if (row == 0 && col > currentColumn) {
+                if (idx < 0 || canvas.quickReject(area.x0 - margin, area.y0 - margin,
+                                                  area.x1 + margin, area.y1 + margin,
+                                                  Canvas.EdgeType.AA)) {
+                    continue;
+                }
+                if (idx >= total) {
+                    notePainter.drawEmptyMeasure(beatsPerMeasure, subBeats, canvas, area);
+                    continue;
+                }
+                // Completed measures don't change anymore, so we draw them from the cache.
+                // Only the active measure is drawn live.
+                Measure measure = idx < numHistory ? history.get(idx)
+                                                   : noteTracker.getMeasure(idx - numHistory);
+                if (measure == null) {
+                    // Still being read from the spill file, or discarded from the history.
                     notePainter.drawEmptyMeasure(beatsPerMeasure, subBeats, canvas, area);
+                } else if (measure.isActive()) {
+                    notePainter.drawMeasure(measure, canvas, area, currentTime);
                 } else {
-                    Measure measure = measures.get(idx--);
-                    notePainter.drawMeasure(measure, canvas, area, System.currentTimeMillis());
+                    bitmapCache.drawMeasure(measure, notePainter, canvas, area);
                 }
             }
         }
+        canvas.restore();
+
+        // Start reading the row that scrolls in next, so it's ready by the time it's visible.
+        int firstInNextRow = firstInTopRow - (firstRow + numRowsToDraw) * numMeasuresPerRow;
+        for (int col = 0; col < numMeasuresPerRow; ++col) {
+            history.prefetch(firstInNextRow + col);
+        }
+
+        float overlayTop = rowHeight * numRowsToDisplay;
+        if (parameters.timingStats()) {
+            area.assign(0.0f, overlayTop, measureWidth * numMeasuresPerRow,
+                        NotePainter.TIMING_OVERLAY_HEIGHT);
+            notePainter.drawTimingOverlay(timingAnalyzer, canvas, area);
+            drawnTimingVersion = timingAnalyzer.getVersion();
+            overlayTop += NotePainter.TIMING_OVERLAY_HEIGHT;
+        }
+
+        if (latencyTracker != null && latencyTracker.isEnabled()) {
+            drawLatencyOverlay(canvas, overlayTop);
+            latencyTracker.onDrawn();
+        }
+    }
+
+    // Height of the latency overlay, including the descent of the last line.
+    private float getLatencyOverlayHeight()
+    {
+        return (1.2f * latencyTracker.getHistograms().length + 1.0f) * OVERLAY_TEXT_SIZE;
+    }
+
+    // Shows the latency histograms below the measures. Only used for diagnostics, so we don't
+    // mind the string formatting.
+    private void drawLatencyOverlay(Canvas canvas, float top)
+    {
+        float y = top + OVERLAY_TEXT_SIZE;
+        for (LatencyHistogram histogram : latencyTracker.getHistograms()) {
+            canvas.drawText(histogram.toString(), 0.0f, y, overlayPaint);
+            y += 1.2f * OVERLAY_TEXT_SIZE;
+        }
     }
 }
@@ -0,0 +1,186 @@
+package org.voelkerweb.midiviz;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Renders click tracks with ClickTrackGenerator in blocks, the way ClickTrackPlayer does, and
+ * checks at which frames the clicks start.
+ */
+public class ClickTrackGeneratorTest
+{
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = 256;  // as in ClickTrackPlayer
+    private static final long T0 = 5000 * Clock.NANOS_PER_MILLI;
+    private static final long MILLI = Clock.NANOS_PER_MILLI;  // 48 frames
+
+    private ClickTrackGenerator generator;
+
+    @Before
+    public void setUp()
+    {
+        generator = new ClickTrackGenerator(SAMPLE_RATE);
+    }
+
+    // Renders the next 'frames' frames in blocks of BLOCK_FRAMES into a new array.
+    private short[] render(int frames)
+    {
+        short[] out = new short[frames];
+        for (int offset = 0; offset < frames; offset += BLOCK_FRAMES) {
+            generator.render(out, offset, Math.min(BLOCK_FRAMES, frames - offset));
+        }
+        return out;
+    }
+
+    // Returns the index of the frame a click starts at, or -1 if the track is silent. The waves
+    // are sines, so the first sample of a click is zero and the second isn't.
+    private static int clickStart(short[] track, int from)
+    {
+        for (int f = from; f < track.length; ++f) {
+            if (track[f] != 0) {
+                return f - 1;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void timeIsConvertedRelativeToAnchor()
+    {
+        generator.setAnchor(1000, T0);
+        assertEquals(1000, generator.frameForTime(T0));
+        assertEquals(1480, generator.frameForTime(T0 + 10 * MILLI));
+        assertEquals(520, generator.frameForTime(T0 - 10 * MILLI));
+    }
+
+    @Test
+    public void clickAtAnchorFrame()
+    {
+        generator.setAnchor(1000, T0);
+        assertTrue(generator.scheduleClickAt(T0, false, 1.0f, 0.0f));
+        short[] track = render(4096);
+        assertEquals(1000, clickStart(track, 0));
+    }
+
+    @Test
+    public void clickAtTimeAfterAnchor()
+    {
+        generator.setAnchor(0, T0);
+        generator.scheduleClickAt(T0 + 10 * MILLI, false, 1.0f, 0.0f);
+        assertEquals(480, clickStart(render(2048), 0));
+    }
+
+    @Test
+    public void clickStartingOnBlockBoundary()
+    {
+        generator.scheduleClick(BLOCK_FRAMES, false, 1.0f);
+        generator.scheduleClick(3 * BLOCK_FRAMES - 1, false, 1.0f);  // last frame of block 2
+        short[] track = render(4 * BLOCK_FRAMES);
+        assertEquals(BLOCK_FRAMES, clickStart(track, 0));
+        for (int f = 0; f < BLOCK_FRAMES; ++f) {
+            assertEquals(0, track[f]);
+        }
+    }
+
+    @Test
+    public void clicksContinueAcrossBlockBoundaries()
+    {
+        // The same clicks rendered in one go and in blocks of 256 frames must be identical,
+        // including clicks that start just before a boundary and span several blocks.
+        int frames = 8 * BLOCK_FRAMES;
+        int[] starts = {250, 511, 512, 900};
+        short[] blocks = render(scheduleClicks(starts), frames, BLOCK_FRAMES);
+        generator = new ClickTrackGenerator(SAMPLE_RATE);
+        short[] whole = render(scheduleClicks(starts), frames, frames);
+        assertArrayEquals(toInts(whole), toInts(blocks));
+        assertEquals(250, clickStart(blocks, 0));
+    }
+
+    private ClickTrackGenerator scheduleClicks(int[] starts)
+    {
+        generator.setAnchor(0, T0);
+        for (int i = 0; i < starts.length; ++i) {
+            // Alternate between frame and time scheduling; both must end up at the same frame.
+            if (i % 2 == 0) {
+                generator.scheduleClick(starts[i], i == 0, 0.5f);
+            } else {
+                long nanos = T0 + Math.round(starts[i] * 1e9 / SAMPLE_RATE);
+                generator.scheduleClickAt(nanos, false, 0.5f, 0.0f);
+            }
+        }
+        return generator;
+    }
+
+    private static short[] render(ClickTrackGenerator g, int frames, int blockFrames)
+    {
+        short[] out = new short[frames];
+        for (int offset = 0; offset < frames; offset += blockFrames) {
+            g.render(out, offset, Math.min(blockFrames, frames - offset));
+        }
+        return out;
+    }
+
+    private static int[] toInts(short[] samples)
+    {
+        int[] result = new int[samples.length];
+        for (int i = 0; i < samples.length; ++i) {
+            result[i] = samples[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void reanchorAfterPlaybackHeadJump()
+    {
+        generator.setAnchor(0, T0);
+        generator.scheduleClickAt(T0 + 20 * MILLI, false, 1.0f, 0.0f);  // frame 960 for now
+        short[] before = render(2 * BLOCK_FRAMES);
+        assertEquals(-1, clickStart(before, 0));
+
+        // The playback head jumped, e.g. after an underrun: frame 512 is only heard 15 ms after
+        // T0, so the click moves to 512 + 5 ms.
+        generator.setAnchor(2 * BLOCK_FRAMES, T0 + 15 * MILLI);
+        short[] after = render(4 * BLOCK_FRAMES);
+        assertEquals(240, clickStart(after, 0));  // frame 752
+    }
+
+    @Test
+    public void clickThatIsLateAfterReanchoringPlaysRightAway()
+    {
+        generator.setAnchor(0, T0);
+        generator.scheduleClickAt(T0 + 20 * MILLI, false, 1.0f, 0.0f);
+        render(2 * BLOCK_FRAMES);
+
+        // Frame 512 is heard 30 ms after T0, so the click's frame has already been rendered.
+        generator.setAnchor(2 * BLOCK_FRAMES, T0 + 30 * MILLI);
+        assertEquals(0, clickStart(render(BLOCK_FRAMES), 0));
+    }
+
+    @Test
+    public void clearKeepsSoundingClicksOnly()
+    {
+        generator.scheduleClick(100, false, 1.0f);
+        generator.scheduleClick(2000, false, 1.0f);
+        render(BLOCK_FRAMES);  // The first click is sounding now.
+        generator.clear();
+        short[] track = render(8 * BLOCK_FRAMES);
+        assertTrue(track[0] != 0);  // still sounding
+        assertEquals(-1, clickStart(track, 1300 - BLOCK_FRAMES));  // The toc lasts 1200 frames.
+    }
+
+    @Test
+    public void tooManyClicksAreDropped()
+    {
+        int scheduled = 0;
+        while (generator.scheduleClick(scheduled, false, 1.0f)) {
+            ++scheduled;
+        }
+        assertEquals(128, scheduled);
+        assertFalse(generator.scheduleClickAt(T0, false, 1.0f, 0.0f));
+    }
+}
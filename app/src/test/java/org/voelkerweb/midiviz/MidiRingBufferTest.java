@@ -0,0 +1,157 @@
+package org.voelkerweb.midiviz;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Offers and drains messages through a MidiRingBuffer, mostly from a single thread, and checks
+ * the order of the drained messages and the statistics.
+ */
+public class MidiRingBufferTest
+{
+    private static final float EPSILON = 1e-6f;
+
+    private MidiRingBuffer ring;
+    private MidiEventBatch batch;
+
+    @Before
+    public void setUp()
+    {
+        ring = new MidiRingBuffer(5);
+        batch = new MidiEventBatch(16);
+    }
+
+    // The i-th message offered in a test, with a matching timestamp.
+    private static int message(int i)
+    {
+        return MidiEvent.pack(MidiEvent.NOTE_ON, i & 0x7F, (i >> 7) & 0x7F, 3);
+    }
+
+    private static long timestamp(int i)
+    {
+        return 1000L * i + 7;
+    }
+
+    // Drains the ring and checks that it held messages [from, to).
+    private void assertDrains(int from, int to)
+    {
+        batch.clear();
+        assertEquals(to - from, ring.drainTo(batch));
+        assertEquals(to - from, batch.size());
+        for (int i = from; i < to; ++i) {
+            assertEquals(message(i), batch.getMessage(i - from));
+            assertEquals(timestamp(i), batch.getTimestamp(i - from));
+        }
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo()
+    {
+        assertEquals(8, ring.capacity());
+        assertEquals(1, new MidiRingBuffer(1).capacity());
+        assertEquals(256, new MidiRingBuffer(256).capacity());
+        assertEquals(512, new MidiRingBuffer(257).capacity());
+    }
+
+    @Test
+    public void drainingAnEmptyRingMovesNothing()
+    {
+        assertDrains(0, 0);
+        assertEquals(0.0f, ring.fillLevel(), EPSILON);
+        assertEquals(0, ring.highWaterMark());
+    }
+
+    @Test
+    public void messagesWrapAroundTheEnd()
+    {
+        // Batches of 3 don't divide the capacity, so the slots wrap at every position.
+        int next = 0;
+        for (int round = 0; round < 20; ++round) {
+            for (int i = 0; i < 3; ++i) {
+                assertTrue(ring.offer(message(next + i), timestamp(next + i)));
+            }
+            assertEquals(3, ring.size());
+            assertDrains(next, next + 3);
+            next += 3;
+        }
+        assertEquals(0, ring.droppedCount());
+        assertEquals(3, ring.highWaterMark());
+    }
+
+    @Test
+    public void fullRingDropsNewMessages()
+    {
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(ring.offer(message(i), timestamp(i)));
+        }
+        assertEquals(1.0f, ring.fillLevel(), EPSILON);
+        assertFalse(ring.offer(message(8), timestamp(8)));
+        assertFalse(ring.offer(message(9), timestamp(9)));
+        assertEquals(2, ring.droppedCount());
+
+        // The waiting messages are kept, and the ring takes new ones once it's drained.
+        assertDrains(0, 8);
+        assertTrue(ring.offer(message(10), timestamp(10)));
+        assertDrains(10, 11);
+        assertEquals(2, ring.droppedCount());
+    }
+
+    @Test
+    public void highWaterMarkKeepsTheMaximum()
+    {
+        for (int i = 0; i < 6; ++i) {
+            ring.offer(message(i), timestamp(i));
+        }
+        assertDrains(0, 6);
+        ring.offer(message(6), timestamp(6));
+        ring.offer(message(7), timestamp(7));
+        assertEquals(2, ring.size());
+        assertEquals(6, ring.highWaterMark());
+
+        // A full ring is the maximum, however many messages are dropped on top.
+        for (int i = 8; i < 20; ++i) {
+            ring.offer(message(i), timestamp(i));
+        }
+        assertEquals(8, ring.highWaterMark());
+        assertEquals(6, ring.droppedCount());
+    }
+
+    @Test
+    public void producerThreadKeepsOrder() throws InterruptedException
+    {
+        final int count = 100000;
+        ring = new MidiRingBuffer(64);
+        Thread producer = new Thread("Producer")
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < count; ) {
+                    if (ring.offer(message(i), timestamp(i))) {
+                        ++i;
+                    } else {
+                        Thread.yield();  // Dropped; offer it again once there's room.
+                    }
+                }
+            }
+        };
+        producer.start();
+        int received = 0;
+        while (received < count) {
+            batch.clear();
+            ring.drainTo(batch);
+            for (int i = 0; i < batch.size(); ++i, ++received) {
+                assertEquals(message(received), batch.getMessage(i));
+                assertEquals(timestamp(received), batch.getTimestamp(i));
+            }
+        }
+        producer.join();
+        assertEquals(0, ring.size());
+        assertTrue(ring.highWaterMark() <= ring.capacity());
+    }
+}
@@ -0,0 +1,189 @@
+package org.voelkerweb.midiviz;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives NoteTracker with event batches under a VirtualClock, so measure rollovers happen at
+ * exactly known times.
+ */
+public class NoteTrackerTest
+{
+    private static final long MILLI = Clock.NANOS_PER_MILLI;
+    private static final long START = 10 * 1000 * MILLI;
+    private static final long BEAT = 600 * MILLI;  // 100 bpm
+    private static final long MEASURE = 4 * BEAT;
+    private static final float EPSILON = 1e-4f;
+
+    private static final int KEY_C = 60;
+    private static final int KEY_E = 64;
+
+    private VirtualClock clock;
+    private NoteTracker tracker;
+    private TimingAnalyzer timing;
+    private MidiEventBatch events;
+    private long[] dingTimes;
+
+    // 4/4 at 100 bpm, keeping 'keep' measures.
+    private static TrackerSettings settings(final int keep)
+    {
+        return new TrackerSettings()
+        {
+            public int beatsPerMeasure() { return 4; }
+
+            public long measureDurationNanos() { return MEASURE; }
+
+            public int numMeasuresToKeep() { return keep; }
+
+            public int maxLevel() { return 0x80; }
+
+            public String velocityCurve() { return VelocityCurve.LINEAR; }
+
+            public String velocityCalibration() { return VelocityCurve.DEFAULT_BREAKPOINTS; }
+        };
+    }
+
+    @Before
+    public void setUp()
+    {
+        clock = new VirtualClock(START);
+        events = new MidiEventBatch(16);
+        createTracker(12);
+    }
+
+    private void createTracker(int keep)
+    {
+        tracker = new NoteTracker(settings(keep));
+        timing = new TimingAnalyzer(1);
+        tracker.registerTimingAnalyzer(timing);
+        tracker.registerMetronome(new NoteTracker.DingListener()
+        {
+            public void scheduleMeasure(long[] times)
+            {
+                dingTimes = times.clone();
+            }
+        });
+    }
+
+    private void noteOn(int key, long time)
+    {
+        events.add(MidiEvent.pack(MidiEvent.NOTE_ON, key, 100, 3), time);
+    }
+
+    private void noteOff(int key, long time)
+    {
+        events.add(MidiEvent.pack(MidiEvent.NOTE_OFF, key, 0, 3), time);
+    }
+
+    // Advances the clock to 'time' and hands the pending events to the tracker.
+    private int updateAt(long time)
+    {
+        clock.set(time);
+        int added = tracker.update(events, clock.nanoTime());
+        events.clear();
+        return added;
+    }
+
+    @Test
+    public void firstUpdateStartsMeasureAtCurrentTime()
+    {
+        assertEquals(1, updateAt(START));
+        assertEquals(1, tracker.getMeasureCount());
+        assertEquals(START, tracker.getOriginTime());
+        assertEquals(START, tracker.getMeasure(0).getStartTime());
+        assertEquals(START + MEASURE, tracker.getMeasure(0).getEndTime());
+        assertArrayEquals(new long[]{START, START + BEAT, START + 2 * BEAT, START + 3 * BEAT,
+                                     START + MEASURE}, dingTimes);
+    }
+
+    @Test
+    public void notesRollOverIntoNextMeasure()
+    {
+        updateAt(START);
+        noteOn(KEY_C, START + BEAT);
+        noteOff(KEY_C, START + BEAT + BEAT / 2);
+        noteOn(KEY_E, START + 3 * BEAT);
+        assertEquals(0, updateAt(START + 2 * BEAT));  // Events may be ahead of the clock.
+        assertTrue(tracker.hasHeldNotes());
+
+        // Cross the bar line while E is held, and release it half a beat into the next measure.
+        noteOff(KEY_E, START + MEASURE + BEAT / 2);
+        assertEquals(1, updateAt(START + MEASURE + BEAT));
+        assertEquals(2, tracker.getMeasureCount());
+
+        Measure first = tracker.getMeasure(0);
+        assertFalse(first.isActive());
+        assertEquals(2, first.getNoteCount());
+        assertEquals(KEY_C, first.getNoteKey(0));
+        assertEquals(1.0f, first.getNoteStartBeat(0), EPSILON);
+        assertEquals(1.5f, first.getNoteEndBeat(0), EPSILON);
+        assertEquals(KEY_E, first.getNoteKey(1));
+        assertEquals(3.0f, first.getNoteStartBeat(1), EPSILON);
+        assertEquals(4.0f, first.getNoteEndBeat(1), EPSILON);  // cut off at the bar line
+        assertFalse(first.isNoteHeld(1));
+
+        Measure second = tracker.getMeasure(1);
+        assertTrue(second.isActive());
+        assertEquals(START + MEASURE, second.getStartTime());
+        assertEquals(1, second.getNoteCount());
+        assertEquals(KEY_E, second.getNoteKey(0));
+        assertEquals(0.0f, second.getNoteStartBeat(0), EPSILON);
+        assertEquals(0.5f, second.getNoteEndBeat(0), EPSILON);
+        assertFalse(tracker.hasHeldNotes());
+
+        assertEquals(START + MEASURE, dingTimes[0]);
+        assertEquals(START + 2 * MEASURE, dingTimes[4]);
+        assertEquals(2, timing.getCount());  // The carried-over note is no new onset.
+        assertEquals(0.0f, timing.getMeanMillis(), 1e-3);  // Both were right on the beat.
+    }
+
+    @Test
+    public void oneUpdateCanStartSeveralMeasures()
+    {
+        updateAt(START);
+        noteOn(KEY_C, START + MEASURE + BEAT);
+        noteOff(KEY_C, START + MEASURE + 2 * BEAT);
+        noteOn(KEY_E, START + 2 * MEASURE + 3 * BEAT);
+        noteOff(KEY_E, START + 2 * MEASURE + 3 * BEAT + BEAT / 4);
+        assertEquals(2, updateAt(START + 2 * MEASURE + 3 * BEAT + BEAT / 2));
+        assertEquals(3, tracker.getMeasureCount());
+        assertEquals(0, tracker.getMeasure(0).getNoteCount());
+        assertEquals(KEY_C, tracker.getMeasure(1).getNoteKey(0));
+        assertEquals(1.0f, tracker.getMeasure(1).getNoteStartBeat(0), EPSILON);
+        assertEquals(KEY_E, tracker.getMeasure(2).getNoteKey(0));
+        assertEquals(3.25f, tracker.getMeasure(2).getNoteEndBeat(0), EPSILON);
+    }
+
+    @Test
+    public void eventsBeforeTheMeasureAreDropped()
+    {
+        updateAt(START);
+        noteOn(KEY_C, START - BEAT);
+        updateAt(START + BEAT);
+        assertEquals(0, tracker.getMeasure(0).getNoteCount());
+    }
+
+    @Test
+    public void expiredMeasuresAreDropped()
+    {
+        createTracker(3);
+        updateAt(START);
+        for (int i = 1; i <= 10; ++i) {
+            noteOn(KEY_C, START + i * MEASURE);
+            noteOff(KEY_C, START + i * MEASURE + BEAT);
+            updateAt(START + i * MEASURE + 2 * BEAT);
+        }
+        assertEquals(3, tracker.getMeasureCount());
+        assertEquals(START, tracker.getOriginTime());
+        for (int i = 0; i < 3; ++i) {
+            Measure measure = tracker.getMeasure(i);
+            assertEquals(START + (8 + i) * MEASURE, measure.getStartTime());
+            assertEquals(1, measure.getNoteCount());
+        }
+    }
+}
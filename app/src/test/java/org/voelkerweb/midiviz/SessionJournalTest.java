@@ -0,0 +1,195 @@
+package org.voelkerweb.midiviz;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes session journals to a temporary directory, tears their tails the way a crash would, and
+ * checks what reopening recovers.
+ */
+public class SessionJournalTest
+{
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = File.createTempFile("journals", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "session" + SessionJournal.EXTENSION);
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; ++i) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    private static int message(int i)
+    {
+        return MidiEvent.pack(MidiEvent.NOTE_ON, i & 0x7F, 100, 3);
+    }
+
+    private static long timestamp(int i)
+    {
+        return 1000L * Clock.NANOS_PER_MILLI + i * 1000L;
+    }
+
+    // Writes a journal with 'count' records and closes it.
+    private void writeJournal(int count) throws IOException
+    {
+        SessionJournal journal = SessionJournal.create(file, 1234, 5678);
+        for (int i = 0; i < count; ++i) {
+            assertTrue(journal.append(message(i), timestamp(i)));
+        }
+        journal.close();
+    }
+
+    private void assertRecords(SessionJournal journal, int count)
+    {
+        assertEquals(count, journal.getRecordCount());
+        for (int i = 0; i < count; ++i) {
+            assertEquals(message(i), journal.getMessage(i));
+            assertEquals(timestamp(i), journal.getTimestamp(i));
+        }
+    }
+
+    // Overwrites part of record i, as if the app died while writing it.
+    private void tearRecord(int i, int offsetInRecord, int value) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(SessionJournal.HEADER_SIZE + (long) i * SessionJournal.RECORD_SIZE +
+                     offsetInRecord);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void reopenKeepsAllRecords() throws IOException
+    {
+        writeJournal(100);
+        SessionJournal journal = SessionJournal.open(file);
+        assertRecords(journal, 100);
+        assertEquals(1234, journal.getStartWallMillis());
+        assertEquals(5678, journal.getStartNanos());
+        journal.close();
+    }
+
+    @Test
+    public void tornLastRecordIsDropped() throws IOException
+    {
+        writeJournal(100);
+        tearRecord(99, 12, 0x12345678);  // The check doesn't match.
+        SessionJournal journal = SessionJournal.open(file);
+        assertRecords(journal, 99);
+
+        // Appending continues in place of the torn record.
+        assertTrue(journal.append(message(99), timestamp(99)));
+        journal.close();
+        journal = SessionJournal.open(file);
+        assertRecords(journal, 100);
+        journal.close();
+    }
+
+    @Test
+    public void truncatedRecordIsDropped() throws IOException
+    {
+        writeJournal(100);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(SessionJournal.HEADER_SIZE + 99 * SessionJournal.RECORD_SIZE + 7);
+        raf.close();
+        SessionJournal journal = SessionJournal.open(file);
+        assertRecords(journal, 99);
+        journal.close();
+    }
+
+    @Test
+    public void recordsAfterTornOneDontResurface() throws IOException
+    {
+        writeJournal(100);
+        tearRecord(50, 8, 0);  // The message doesn't match the check anymore.
+        SessionJournal journal = SessionJournal.open(file);
+        assertRecords(journal, 50);
+
+        // Once the torn record is overwritten, the old records after it must stay gone.
+        assertTrue(journal.append(message(50), timestamp(50)));
+        journal.close();
+        journal = SessionJournal.open(file);
+        assertRecords(journal, 51);
+        journal.close();
+    }
+
+    @Test
+    public void readOnlyOpenLeavesTornTailAlone() throws IOException
+    {
+        writeJournal(100);
+        tearRecord(50, 8, 0);
+        long length = file.length();
+        SessionJournal journal = SessionJournal.openReadOnly(file);
+        assertRecords(journal, 50);
+        assertFalse(journal.append(message(50), timestamp(50)));
+        journal.close();
+        assertEquals(length, file.length());
+
+        // The records after the torn one are still there, so open() still has to clear them.
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(SessionJournal.HEADER_SIZE + 99L * SessionJournal.RECORD_SIZE);
+        assertTrue(raf.readLong() != 0);
+        raf.close();
+    }
+
+    @Test
+    public void oldJournalsAreDeletedBeyondCount() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; ++i) {
+            File journal = new File(dir, "session-" + i + SessionJournal.EXTENSION);
+            SessionJournal.create(journal, 0, 0).close();
+            assertTrue(journal.setLastModified(now - (5 - i) * 60000));
+        }
+        File other = new File(dir, "notes.txt");
+        assertTrue(other.createNewFile());
+
+        assertEquals(3, SessionJournal.deleteOldJournals(dir, 2, Long.MAX_VALUE));
+        assertTrue(new File(dir, "session-4" + SessionJournal.EXTENSION).exists());
+        assertTrue(new File(dir, "session-3" + SessionJournal.EXTENSION).exists());
+        assertFalse(new File(dir, "session-2" + SessionJournal.EXTENSION).exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void oldJournalsAreDeletedBeyondSize() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; ++i) {
+            File journal = new File(dir, "session-" + i + SessionJournal.EXTENSION);
+            SessionJournal created = SessionJournal.create(journal, 0, 0);
+            created.append(message(i), timestamp(i));  // maps a whole segment
+            created.close();
+            assertTrue(journal.setLastModified(now - (3 - i) * 60000));
+        }
+        long size = new File(dir, "session-0" + SessionJournal.EXTENSION).length();
+
+        // The newest journal is kept even if it alone exceeds the limit.
+        assertEquals(2, SessionJournal.deleteOldJournals(dir, 10, size / 2));
+        assertTrue(new File(dir, "session-2" + SessionJournal.EXTENSION).exists());
+        assertEquals(0, SessionJournal.deleteOldJournals(dir, 10, size / 2));
+    }
+}
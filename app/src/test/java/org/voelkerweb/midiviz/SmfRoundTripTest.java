@@ -0,0 +1,204 @@
+package org.voelkerweb.midiviz;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes Standard MIDI Files with SmfWriter, or byte by byte, and reads them back with SmfReader.
+ * <p/>
+ * All files have 480 ticks per quarter. Where a test sets the tempo, it starts at 480000 us per
+ * quarter, so a tick is exactly a millisecond until the tempo changes.
+ */
+public class SmfRoundTripTest
+{
+    private static final long MILLI = Clock.NANOS_PER_MILLI;
+    private static final int TICKS_PER_QUARTER = 480;
+    private static final int MILLI_TEMPO = 480000;  // 1 ms per tick
+    private static final int HALF_MILLI_TEMPO = 240000;  // 0.5 ms per tick
+
+    private static final int C_ON = MidiEvent.pack(MidiEvent.NOTE_ON, 60, 100, 3);
+    private static final int C_OFF = MidiEvent.pack(MidiEvent.NOTE_OFF, 60, 0, 3);
+    private static final int E_ON = MidiEvent.pack(MidiEvent.NOTE_ON | 1, 64, 80, 3);
+    private static final int E_OFF = MidiEvent.pack(MidiEvent.NOTE_OFF | 1, 64, 0, 3);
+    private static final int PROGRAM = MidiEvent.pack(0xC0, 5, 0, 2);
+
+    private File file;
+    private RandomAccessFile raf;
+    private SmfReader reader;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("roundtrip", ".mid");
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (reader != null) {
+            reader.close();
+        }
+        raf.close();
+        file.delete();
+    }
+
+    private SmfReader openReader() throws IOException
+    {
+        reader = new SmfReader(new RandomAccessFile(file, "r").getChannel());
+        return reader;
+    }
+
+    private void assertNext(int message, long time) throws IOException
+    {
+        assertTrue(reader.advance());
+        assertEquals(Integer.toHexString(message), Integer.toHexString(reader.getMessage()));
+        assertEquals(time, reader.getTime());
+    }
+
+    // Writes raw file contents, given as ints for readability.
+    private void writeBytes(int... bytes) throws IOException
+    {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            data[i] = (byte) bytes[i];
+        }
+        raf.write(data);
+    }
+
+    @Test
+    public void formatZeroRoundTrip() throws IOException
+    {
+        SmfWriter writer = new SmfWriter(raf.getChannel(), SmfWriter.FORMAT_SINGLE_TRACK,
+                                         TICKS_PER_QUARTER);
+        writer.beginTrack();
+        writer.writeTrackName(0, "Piano");
+        writer.writeTimeSignature(0, 4, 2);
+        writer.writeTempo(0, MILLI_TEMPO);
+        writer.writeMessage(0, C_ON);
+        writer.writeMessage(100, C_OFF);  // 1 byte delta
+        writer.writeMessage(200, E_ON);  // 2 bytes, tick 300
+        writer.writeTempo(700, HALF_MILLI_TEMPO);  // tick 1000
+        writer.writeMessage(20000, E_OFF);  // 3 bytes, tick 21000
+        writer.writeMessage(3000000, PROGRAM);  // 4 bytes
+        writer.endTrack(0);
+        writer.close();
+
+        openReader();
+        assertNext(C_ON, 0);
+        assertNext(C_OFF, 100 * MILLI);
+        assertNext(E_ON, 300 * MILLI);
+        assertNext(E_OFF, 1000 * MILLI + 10000 * MILLI);
+        assertNext(PROGRAM, 11000 * MILLI + 1500000 * MILLI);
+        assertFalse(reader.advance());
+    }
+
+    @Test
+    public void formatOneMergesTracksAcrossTempoChange() throws IOException
+    {
+        SmfWriter writer = new SmfWriter(raf.getChannel(), SmfWriter.FORMAT_MULTI_TRACK,
+                                         TICKS_PER_QUARTER);
+        writer.beginTrack();  // conductor track
+        writer.writeTimeSignature(0, 3, 2);
+        writer.writeTempo(0, MILLI_TEMPO);
+        writer.writeTempo(960, HALF_MILLI_TEMPO);
+        writer.endTrack(0);
+
+        writer.beginTrack();
+        writer.writeTrackName(0, "Teacher");
+        writer.writeMessage(480, C_ON);
+        writer.writeMessage(480, C_OFF);  // at the tempo change, which must apply first
+        writer.writeMessage(16384, PROGRAM);  // 3 bytes, tick 17344
+        writer.endTrack(0);
+
+        writer.beginTrack();
+        writer.writeTrackName(0, "Student");
+        writer.writeMessage(500, E_ON);
+        writer.writeMessage(1000, E_OFF);  // tick 1500
+        writer.endTrack(0);
+        writer.close();
+
+        openReader();
+        assertNext(C_ON, 480 * MILLI);
+        assertNext(E_ON, 500 * MILLI);
+        assertNext(C_OFF, 960 * MILLI);
+        assertNext(E_OFF, 960 * MILLI + 270 * MILLI);
+        assertNext(PROGRAM, 960 * MILLI + 8192 * MILLI);
+        assertFalse(reader.advance());
+    }
+
+    @Test
+    public void deltasAreWrittenAsVariableLengthQuantities() throws IOException
+    {
+        // The examples from the SMF specification.
+        long[] deltas = {0x7F, 0x80, 0x2000, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000, 0x0FFFFFFF};
+        int[][] encodings = {
+                {0x7F}, {0x81, 0x00}, {0xC0, 0x00}, {0xFF, 0x7F}, {0x81, 0x80, 0x00},
+                {0xFF, 0xFF, 0x7F}, {0x81, 0x80, 0x80, 0x00}, {0xFF, 0xFF, 0xFF, 0x7F}};
+        SmfWriter writer = new SmfWriter(raf.getChannel(), SmfWriter.FORMAT_SINGLE_TRACK,
+                                         TICKS_PER_QUARTER);
+        writer.beginTrack();
+        for (long delta : deltas) {
+            writer.writeMessage(delta, PROGRAM);
+        }
+        writer.endTrack(0);
+        writer.close();
+
+        raf.seek(14 + 8);  // header chunk, track chunk header
+        for (int[] encoding : encodings) {
+            int[] bytes = new int[encoding.length];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = raf.readUnsignedByte();
+            }
+            assertArrayEquals(encoding, bytes);
+            assertEquals(0xC0, raf.readUnsignedByte());
+            assertEquals(5, raf.readUnsignedByte());
+        }
+
+        openReader();
+        long tick = 0;
+        for (long delta : deltas) {
+            tick += delta;
+            assertNext(PROGRAM, defaultTempoNanos(tick));
+        }
+        assertFalse(reader.advance());
+    }
+
+    @Test
+    public void runningStatusIsReadBack() throws IOException
+    {
+        // SmfWriter never uses running status, but other programs do.
+        writeBytes('M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0x01, 0xE0);
+        writeBytes('M', 'T', 'r', 'k', 0, 0, 0, 20);
+        writeBytes(0x00, 0x90, 60, 100,  // C on
+                   0x81, 0x00, 64, 80,  // E on, running status, 128 ticks later
+                   0x00, 60, 0,  // C off as a note on with velocity 0
+                   0x00, 0xC0, 5,
+                   0x10, 6,  // running status with one data byte
+                   0x00, 0xFF, 0x2F, 0x00);
+
+        openReader();
+        assertNext(C_ON, 0);
+        assertNext(MidiEvent.pack(MidiEvent.NOTE_ON, 64, 80, 3), defaultTempoNanos(128));
+        assertNext(MidiEvent.pack(MidiEvent.NOTE_ON, 60, 0, 3), defaultTempoNanos(128));
+        assertNext(PROGRAM, defaultTempoNanos(128));
+        assertNext(MidiEvent.pack(0xC0, 6, 0, 2), defaultTempoNanos(144));
+        assertFalse(reader.advance());
+    }
+
+    // Without a tempo event, a quarter lasts 500000 us (120 bpm).
+    private static long defaultTempoNanos(long ticks)
+    {
+        return ticks * 500000 * 1000 / TICKS_PER_QUARTER;
+    }
+}
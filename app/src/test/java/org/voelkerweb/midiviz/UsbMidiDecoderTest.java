@@ -0,0 +1,308 @@
+package org.voelkerweb.midiviz;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds UsbMidiDecoder with USB-MIDI packet fixtures and checks the decoded messages.
+ */
+public class UsbMidiDecoderTest
+{
+    private static final long TIME = 1234;
+
+    private UsbMidiDecoder decoder;
+    private ArrayList<Integer> messages;
+    private ArrayList<byte[]> sysExes;
+    private ArrayList<Integer> sysExCables;
+
+    private UsbMidiDecoder.Sink sink = new UsbMidiDecoder.Sink()
+    {
+        public void onMessage(int message, long timestamp)
+        {
+            assertEquals(TIME, timestamp);
+            messages.add(message);
+        }
+
+        public void onSysEx(int cable, byte[] data, int length, long timestamp)
+        {
+            assertEquals(TIME, timestamp);
+            sysExes.add(Arrays.copyOf(data, length));
+            sysExCables.add(cable);
+        }
+    };
+
+    @Before
+    public void setUp()
+    {
+        decoder = new UsbMidiDecoder();
+        messages = new ArrayList<Integer>();
+        sysExes = new ArrayList<byte[]>();
+        sysExCables = new ArrayList<Integer>();
+    }
+
+    // Builds a transfer buffer from packets, each given as {cable, cin, b0, b1, b2}.
+    private static byte[] packets(int[]... packets)
+    {
+        byte[] buf = new byte[packets.length * UsbMidiDecoder.PACKET_SIZE];
+        for (int i = 0; i < packets.length; ++i) {
+            int[] p = packets[i];
+            buf[4 * i] = (byte) (p[0] << 4 | p[1]);
+            buf[4 * i + 1] = (byte) p[2];
+            buf[4 * i + 2] = (byte) p[3];
+            buf[4 * i + 3] = (byte) p[4];
+        }
+        return buf;
+    }
+
+    private static int[] packet(int cable, int cin, int b0, int b1, int b2)
+    {
+        return new int[]{cable, cin, b0, b1, b2};
+    }
+
+    private int decode(byte[] buf)
+    {
+        return decoder.decode(buf, buf.length, TIME, sink);
+    }
+
+    private static byte[] bytes(int... values)
+    {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    // Splits a complete SysEx message into CIN 0x4 packets and a final 0x5, 0x6 or 0x7 one.
+    private static byte[] sysExPackets(int cable, byte[] sysEx)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (sysEx.length - i > 3) {
+            out.write(cable << 4 | 0x4);
+            out.write(sysEx, i, 3);
+            i += 3;
+        }
+        int rest = sysEx.length - i;
+        out.write(cable << 4 | (0x4 + rest));
+        for (int j = 0; j < 3; ++j) {
+            out.write(j < rest ? sysEx[i + j] : 0);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] sysExOfLength(int length)
+    {
+        byte[] sysEx = new byte[length];
+        sysEx[0] = (byte) 0xF0;
+        for (int i = 1; i < length - 1; ++i) {
+            sysEx[i] = (byte) (i & 0x7F);
+        }
+        sysEx[length - 1] = (byte) 0xF7;
+        return sysEx;
+    }
+
+    @Test
+    public void reservedCinsAreDropped()
+    {
+        assertEquals(0, decode(packets(packet(0, 0x0, 0x90, 60, 100),
+                                       packet(0, 0x1, 0x90, 60, 100))));
+        assertEquals(0, messages.size());
+    }
+
+    @Test
+    public void channelMessages()
+    {
+        byte[] buf = packets(packet(0, 0x8, 0x80, 60, 64),
+                             packet(0, 0x9, 0x91, 61, 100),
+                             packet(0, 0xA, 0xA2, 62, 30),
+                             packet(0, 0xB, 0xB3, 64, 127),
+                             packet(0, 0xC, 0xC4, 5, 0),
+                             packet(0, 0xD, 0xD5, 40, 0),
+                             packet(0, 0xE, 0xE6, 0x00, 0x40));
+        assertEquals(7, decode(buf));
+        assertEquals(MidiEvent.pack(0x80, 60, 64, 3), (int) messages.get(0));
+        assertEquals(MidiEvent.pack(0x91, 61, 100, 3), (int) messages.get(1));
+        assertEquals(MidiEvent.pack(0xA2, 62, 30, 3), (int) messages.get(2));
+        assertEquals(MidiEvent.pack(0xB3, 64, 127, 3), (int) messages.get(3));
+        assertEquals(MidiEvent.pack(0xC4, 5, 0, 2), (int) messages.get(4));
+        assertEquals(MidiEvent.pack(0xD5, 40, 0, 2), (int) messages.get(5));
+        assertEquals(MidiEvent.pack(0xE6, 0x00, 0x40, 3), (int) messages.get(6));
+    }
+
+    @Test
+    public void systemCommonMessages()
+    {
+        byte[] buf = packets(packet(0, 0x2, 0xF1, 0x23, 0),  // MTC quarter frame
+                             packet(0, 0x3, 0xF2, 0x10, 0x20),  // song position pointer
+                             packet(0, 0x5, 0xF6, 0, 0));  // tune request
+        assertEquals(3, decode(buf));
+        assertEquals(MidiEvent.pack(0xF1, 0x23, 0, 2), (int) messages.get(0));
+        assertEquals(MidiEvent.pack(0xF2, 0x10, 0x20, 3), (int) messages.get(1));
+        assertEquals(MidiEvent.pack(0xF6, 0, 0, 1), (int) messages.get(2));
+    }
+
+    @Test
+    public void singleBytes()
+    {
+        byte[] buf = packets(packet(0, 0xF, 0xF8, 0, 0),  // timing clock
+                             packet(0, 0xF, 0xFE, 0, 0));  // active sensing
+        assertEquals(2, decode(buf));
+        assertEquals(MidiEvent.pack(0xF8, 0, 0, 1), (int) messages.get(0));
+        assertEquals(MidiEvent.pack(0xFE, 0, 0, 1), (int) messages.get(1));
+    }
+
+    @Test
+    public void messagesAreTaggedWithTheirCable()
+    {
+        byte[] buf = packets(packet(5, 0x9, 0x90, 60, 100),
+                             packet(15, 0xF, 0xF8, 0, 0),
+                             packet(0, 0x8, 0x80, 60, 0));
+        assertEquals(3, decode(buf));
+        assertEquals(5, MidiEvent.cable(messages.get(0)));
+        assertEquals(0x90, MidiEvent.status(messages.get(0)));
+        assertEquals(60, MidiEvent.data1(messages.get(0)));
+        assertEquals(100, MidiEvent.data2(messages.get(0)));
+        assertEquals(3, MidiEvent.length(messages.get(0)));
+        assertEquals(15, MidiEvent.cable(messages.get(1)));
+        assertEquals(0xF8, MidiEvent.status(messages.get(1)));
+        assertEquals(0, MidiEvent.cable(messages.get(2)));
+    }
+
+    @Test
+    public void sysExSplitAcrossPackets()
+    {
+        // One message for each way of ending: CIN 0x5, 0x6 and 0x7.
+        byte[][] expected = {bytes(0xF0, 0x7E, 0x7F, 0xF7),
+                             bytes(0xF0, 0x7E, 0x7F, 0x06, 0xF7),
+                             bytes(0xF0, 0x7E, 0x7F, 0x06, 0x01, 0xF7)};
+        for (byte[] sysEx : expected) {
+            assertEquals(1, decode(sysExPackets(2, sysEx)));
+        }
+        assertEquals(3, sysExes.size());
+        for (int i = 0; i < expected.length; ++i) {
+            assertArrayEquals(expected[i], sysExes.get(i));
+            assertEquals(2, (int) sysExCables.get(i));
+        }
+        assertEquals(0, messages.size());
+        assertEquals(0, decoder.droppedSysExCount());
+    }
+
+    @Test
+    public void sysExSplitAcrossDecodeCalls()
+    {
+        byte[] sysEx = sysExOfLength(20);
+        byte[] buf = sysExPackets(0, sysEx);
+        int split = 2 * UsbMidiDecoder.PACKET_SIZE;
+        assertEquals(0, decode(Arrays.copyOfRange(buf, 0, split)));
+        assertEquals(1, decode(Arrays.copyOfRange(buf, split, buf.length)));
+        assertEquals(1, sysExes.size());
+        assertArrayEquals(sysEx, sysExes.get(0));
+    }
+
+    @Test
+    public void sysExOnSeveralCablesAtOnce()
+    {
+        byte[] buf = packets(packet(1, 0x4, 0xF0, 0x01, 0x02),
+                             packet(2, 0x4, 0xF0, 0x0A, 0x0B),
+                             packet(1, 0x6, 0x03, 0xF7, 0),
+                             packet(2, 0x5, 0xF7, 0, 0));
+        assertEquals(2, decode(buf));
+        assertArrayEquals(bytes(0xF0, 0x01, 0x02, 0x03, 0xF7), sysExes.get(0));
+        assertEquals(1, (int) sysExCables.get(0));
+        assertArrayEquals(bytes(0xF0, 0x0A, 0x0B, 0xF7), sysExes.get(1));
+        assertEquals(2, (int) sysExCables.get(1));
+    }
+
+    @Test
+    public void sysExByteByByteWithRealTimeInterleaved()
+    {
+        byte[] buf = packets(packet(3, 0xF, 0xF0, 0, 0),
+                             packet(3, 0xF, 0x43, 0, 0),
+                             packet(3, 0xF, 0xF8, 0, 0),  // timing clock in the middle
+                             packet(3, 0xF, 0x12, 0, 0),
+                             packet(3, 0xF, 0xFE, 0, 0),  // active sensing in the middle
+                             packet(3, 0xF, 0xF7, 0, 0));
+        assertEquals(3, decode(buf));
+        assertEquals(1, sysExes.size());
+        assertArrayEquals(bytes(0xF0, 0x43, 0x12, 0xF7), sysExes.get(0));
+        assertEquals(3, (int) sysExCables.get(0));
+        assertEquals(2, messages.size());
+        assertEquals(MidiEvent.withCable(MidiEvent.pack(0xF8, 0, 0, 1), 3),
+                     (int) messages.get(0));
+        assertEquals(MidiEvent.withCable(MidiEvent.pack(0xFE, 0, 0, 1), 3),
+                     (int) messages.get(1));
+    }
+
+    @Test
+    public void sysExAtMaxLengthIsDelivered()
+    {
+        byte[] sysEx = sysExOfLength(UsbMidiDecoder.MAX_SYSEX_LENGTH);
+        assertEquals(1, decode(sysExPackets(0, sysEx)));
+        assertArrayEquals(sysEx, sysExes.get(0));
+    }
+
+    @Test
+    public void sysExOverflowIsDropped()
+    {
+        byte[] tooLong = sysExOfLength(UsbMidiDecoder.MAX_SYSEX_LENGTH + 1);
+        assertEquals(0, decode(sysExPackets(0, tooLong)));
+        assertEquals(0, sysExes.size());
+        assertEquals(1, decoder.droppedSysExCount());
+
+        // The next message is unaffected.
+        byte[] sysEx = bytes(0xF0, 0x01, 0xF7);
+        assertEquals(1, decode(sysExPackets(0, sysEx)));
+        assertArrayEquals(sysEx, sysExes.get(0));
+    }
+
+    @Test
+    public void sysExRestartedBeforeItEnded()
+    {
+        byte[] buf = packets(packet(0, 0x4, 0xF0, 0x01, 0x02),
+                             packet(0, 0x4, 0xF0, 0x03, 0x04),
+                             packet(0, 0x5, 0xF7, 0, 0));
+        assertEquals(1, decode(buf));
+        assertEquals(1, decoder.droppedSysExCount());
+        assertArrayEquals(bytes(0xF0, 0x03, 0x04, 0xF7), sysExes.get(0));
+    }
+
+    @Test
+    public void sysExContinuationWithoutStartIsDropped()
+    {
+        byte[] buf = packets(packet(0, 0x4, 0x01, 0x02, 0x03),
+                             packet(0, 0x6, 0x04, 0xF7, 0));
+        assertEquals(0, decode(buf));
+        assertEquals(0, sysExes.size());
+        assertEquals(1, decoder.droppedSysExCount());
+
+        // Byte by byte, too: without a start, an end is passed on as a plain single byte.
+        assertEquals(1, decode(packets(packet(0, 0xF, 0xF7, 0, 0))));
+        assertEquals(0, sysExes.size());
+    }
+
+    @Test
+    public void resetForgetsPartialSysEx()
+    {
+        decode(packets(packet(0, 0x4, 0xF0, 0x01, 0x02)));
+        decoder.reset();
+        assertEquals(0, decode(packets(packet(0, 0x6, 0x03, 0xF7, 0))));
+        assertEquals(0, sysExes.size());
+    }
+
+    @Test
+    public void trailingPartialPacketIsIgnored()
+    {
+        byte[] buf = packets(packet(0, 0x9, 0x90, 60, 100), packet(0, 0x8, 0x80, 60, 0));
+        assertEquals(1, decoder.decode(buf, 6, TIME, sink));
+        assertEquals(1, messages.size());
+        assertEquals(MidiEvent.pack(0x90, 60, 100, 3), (int) messages.get(0));
+    }
+}